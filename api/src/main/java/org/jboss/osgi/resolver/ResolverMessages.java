@@ -103,4 +103,7 @@ public interface ResolverMessages {
 
     @Message(id = 10919, value = "Cannot iterate over module resources for: %s")
     IllegalStateException illegalStateCannotIterateOverModuleResources(@Cause Throwable cause, Resource res);
+
+    @Message(id = 10920, value = "Cannot find resolver engine: %s")
+    IllegalStateException illegalStateCannotFindResolverEngine(String engine);
 }
@@ -24,6 +24,10 @@ import org.osgi.service.resolver.ResolveContext;
 /**
  * An extension of the {@link ResolveContext}
  *
+ * A resolver that calculates package spaces speculatively reads the wirings of the context from several threads
+ * during one resolve. This includes {@link #getWirings()} and the wires of the returned wirings, which therefore
+ * must not change until the resolve returns.
+ *
  * @author thomas.diesler@jboss.com
  * @since 02-Apr-2012
  */
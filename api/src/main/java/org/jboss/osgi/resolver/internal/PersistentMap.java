@@ -0,0 +1,466 @@
+/*
+ * #%L
+ * JBossOSGi Resolver API
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.resolver.internal;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable hash map that shares structure with the map it was derived from.
+ *
+ * The entries are kept in a hash trie with 32 children per node. An update copies the path to the
+ * changed entry only, so that a map can be shared between several owners without copying it.
+ * Null keys and values are not supported.
+ *
+ * This class is shared by the environment and the resolver implementation, it is not part of the API.
+ *
+ * @author agent@local
+ * @since 17-Oct-2026
+ */
+public final class PersistentMap<K, V> implements Iterable<Entry<K, V>> {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    @SuppressWarnings("rawtypes")
+    private static final PersistentMap EMPTY = new PersistentMap(null, 0);
+
+    private final Node root;
+    private final int size;
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentMap<K, V> empty() {
+        return EMPTY;
+    }
+
+    private PersistentMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        return root != null && key != null ? (V) root.get(key, hash(key), 0) : null;
+    }
+
+    public PersistentMap<K, V> put(K key, V value) {
+        if (key == null)
+            throw new IllegalArgumentException("Null key");
+        if (value == null)
+            throw new IllegalArgumentException("Null value");
+        V previous = get(key);
+        if (previous == value)
+            return this;
+        Leaf leaf = new Leaf(key, value, hash(key));
+        Node node = root != null ? root.put(leaf, 0) : new BitmapNode(0, new Object[0]).put(leaf, 0);
+        return new PersistentMap<K, V>(node, previous != null ? size : size + 1);
+    }
+
+    public PersistentMap<K, V> remove(Object key) {
+        if (get(key) == null)
+            return this;
+        Node node = root.remove(key, hash(key), 0);
+        return node != null ? new PersistentMap<K, V>(node, size - 1) : PersistentMap.<K, V> empty();
+    }
+
+    @Override
+    public Iterator<Entry<K, V>> iterator() {
+        return new EntryIterator<K, V>(root);
+    }
+
+    public Iterable<K> keys() {
+        return new Iterable<K>() {
+            @Override
+            public Iterator<K> iterator() {
+                final Iterator<Entry<K, V>> itentry = PersistentMap.this.iterator();
+                return new Iterator<K>() {
+                    @Override
+                    public boolean hasNext() {
+                        return itentry.hasNext();
+                    }
+
+                    @Override
+                    public K next() {
+                        return itentry.next().getKey();
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Get the keys that this map and the given map do not map to the same value instance, including the keys
+     * that only one of the maps contains.
+     *
+     * Subtrees that both maps share are skipped, so comparing a map with a map that was derived from it takes
+     * time in proportion to the updates between them.
+     */
+    @SuppressWarnings("unchecked")
+    public Set<K> getChangedKeys(PersistentMap<K, V> other) {
+        if (other == null)
+            throw new IllegalArgumentException("Null map");
+        Set<Object> result = new HashSet<Object>();
+        diff(root, other.root, 0, result);
+        return (Set<K>) result;
+    }
+
+    private static void diff(Object first, Object second, int shift, Set<Object> result) {
+        if (first == second)
+            return;
+        if (first instanceof BitmapNode && second instanceof BitmapNode) {
+            BitmapNode firstnode = (BitmapNode) first;
+            BitmapNode secondnode = (BitmapNode) second;
+            int bitmap = firstnode.bitmap | secondnode.bitmap;
+            while (bitmap != 0) {
+                int bit = Integer.lowestOneBit(bitmap);
+                bitmap &= ~bit;
+                diff(firstnode.slotAt(bit), secondnode.slotAt(bit), shift + BITS, result);
+            }
+            return;
+        }
+        // Compare the leaves of subtrees with a different shape one by one
+        List<Leaf> leaves = new ArrayList<Leaf>();
+        collectLeaves(first, leaves);
+        for (Leaf leaf : leaves) {
+            if (lookup(second, leaf, shift) != leaf.value) {
+                result.add(leaf.key);
+            }
+        }
+        leaves.clear();
+        collectLeaves(second, leaves);
+        for (Leaf leaf : leaves) {
+            if (lookup(first, leaf, shift) == null) {
+                result.add(leaf.key);
+            }
+        }
+    }
+
+    private static void collectLeaves(Object slot, List<Leaf> result) {
+        if (slot instanceof Leaf) {
+            result.add((Leaf) slot);
+        } else if (slot != null) {
+            Node node = (Node) slot;
+            for (int i = 0; i < node.slots(); i++) {
+                collectLeaves(node.slot(i), result);
+            }
+        }
+    }
+
+    private static Object lookup(Object slot, Leaf leaf, int shift) {
+        if (slot instanceof Leaf) {
+            Leaf other = (Leaf) slot;
+            return other.hash == leaf.hash && other.key.equals(leaf.key) ? other.value : null;
+        }
+        return slot != null ? ((Node) slot).get(leaf.key, leaf.hash, shift) : null;
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Leaf {
+
+        private final Object key;
+        private final Object value;
+        private final int hash;
+
+        Leaf(Object key, Object value, int hash) {
+            this.key = key;
+            this.value = value;
+            this.hash = hash;
+        }
+    }
+
+    private interface Node {
+
+        Object get(Object key, int hash, int shift);
+
+        Node put(Leaf leaf, int shift);
+
+        // Returns null if the node becomes empty
+        Node remove(Object key, int hash, int shift);
+
+        int slots();
+
+        Object slot(int index);
+    }
+
+    /**
+     * A trie node with a slot for every bit that is set in the bitmap. A slot is either a {@link Leaf} or a child {@link Node}.
+     */
+    private static final class BitmapNode implements Node {
+
+        private final int bitmap;
+        private final Object[] slots;
+
+        BitmapNode(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+
+        @Override
+        public Object get(Object key, int hash, int shift) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0)
+                return null;
+            Object slot = slots[index(bit)];
+            if (slot instanceof Leaf) {
+                Leaf leaf = (Leaf) slot;
+                return leaf.hash == hash && leaf.key.equals(key) ? leaf.value : null;
+            }
+            return ((Node) slot).get(key, hash, shift + BITS);
+        }
+
+        @Override
+        public Node put(Leaf leaf, int shift) {
+            int bit = bit(leaf.hash, shift);
+            int index = index(bit);
+            if ((bitmap & bit) == 0) {
+                Object[] result = new Object[slots.length + 1];
+                System.arraycopy(slots, 0, result, 0, index);
+                result[index] = leaf;
+                System.arraycopy(slots, index, result, index + 1, slots.length - index);
+                return new BitmapNode(bitmap | bit, result);
+            }
+            Object slot = slots[index];
+            Object replacement;
+            if (slot instanceof Leaf) {
+                Leaf other = (Leaf) slot;
+                if (other.hash == leaf.hash && other.key.equals(leaf.key)) {
+                    replacement = leaf;
+                } else {
+                    replacement = merge(other, leaf, shift + BITS);
+                }
+            } else {
+                replacement = ((Node) slot).put(leaf, shift + BITS);
+            }
+            Object[] result = slots.clone();
+            result[index] = replacement;
+            return new BitmapNode(bitmap, result);
+        }
+
+        @Override
+        public Node remove(Object key, int hash, int shift) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0)
+                return this;
+            int index = index(bit);
+            Object slot = slots[index];
+            Object replacement;
+            if (slot instanceof Leaf) {
+                Leaf leaf = (Leaf) slot;
+                if (leaf.hash != hash || !leaf.key.equals(key))
+                    return this;
+                replacement = null;
+            } else {
+                Node child = ((Node) slot).remove(key, hash, shift + BITS);
+                if (child == slot)
+                    return this;
+                // Pull a single remaining leaf up into this node
+                replacement = child != null && child.slots() == 1 && child.slot(0) instanceof Leaf ? child.slot(0) : child;
+            }
+            if (replacement != null) {
+                Object[] result = slots.clone();
+                result[index] = replacement;
+                return new BitmapNode(bitmap, result);
+            }
+            if (slots.length == 1)
+                return null;
+            Object[] result = new Object[slots.length - 1];
+            System.arraycopy(slots, 0, result, 0, index);
+            System.arraycopy(slots, index + 1, result, index, slots.length - index - 1);
+            return new BitmapNode(bitmap & ~bit, result);
+        }
+
+        @Override
+        public int slots() {
+            return slots.length;
+        }
+
+        @Override
+        public Object slot(int index) {
+            return slots[index];
+        }
+
+        // Returns null if the bit is not set in the bitmap
+        Object slotAt(int bit) {
+            return (bitmap & bit) != 0 ? slots[index(bit)] : null;
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        private static int bit(int hash, int shift) {
+            return 1 << ((hash >>> shift) & MASK);
+        }
+
+        private static Node merge(Leaf first, Leaf second, int shift) {
+            if (shift >= Integer.SIZE) {
+                return new CollisionNode(new Leaf[] { first, second });
+            }
+            int firstbit = bit(first.hash, shift);
+            int secondbit = bit(second.hash, shift);
+            if (firstbit == secondbit) {
+                return new BitmapNode(firstbit, new Object[] { merge(first, second, shift + BITS) });
+            }
+            // Compare the slot positions, the bit of the last slot is negative
+            boolean ordered = ((first.hash >>> shift) & MASK) < ((second.hash >>> shift) & MASK);
+            Object[] slots = ordered ? new Object[] { first, second } : new Object[] { second, first };
+            return new BitmapNode(firstbit | secondbit, slots);
+        }
+    }
+
+    /**
+     * The leaves of keys that have the same hash.
+     */
+    private static final class CollisionNode implements Node {
+
+        private final Leaf[] leaves;
+
+        CollisionNode(Leaf[] leaves) {
+            this.leaves = leaves;
+        }
+
+        @Override
+        public Object get(Object key, int hash, int shift) {
+            for (Leaf leaf : leaves) {
+                if (leaf.key.equals(key)) {
+                    return leaf.value;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public Node put(Leaf leaf, int shift) {
+            for (int i = 0; i < leaves.length; i++) {
+                if (leaves[i].key.equals(leaf.key)) {
+                    Leaf[] result = leaves.clone();
+                    result[i] = leaf;
+                    return new CollisionNode(result);
+                }
+            }
+            Leaf[] result = new Leaf[leaves.length + 1];
+            System.arraycopy(leaves, 0, result, 0, leaves.length);
+            result[leaves.length] = leaf;
+            return new CollisionNode(result);
+        }
+
+        @Override
+        public Node remove(Object key, int hash, int shift) {
+            for (int i = 0; i < leaves.length; i++) {
+                if (leaves[i].key.equals(key)) {
+                    if (leaves.length == 1)
+                        return null;
+                    Leaf[] result = new Leaf[leaves.length - 1];
+                    System.arraycopy(leaves, 0, result, 0, i);
+                    System.arraycopy(leaves, i + 1, result, i, leaves.length - i - 1);
+                    return new CollisionNode(result);
+                }
+            }
+            return this;
+        }
+
+        @Override
+        public int slots() {
+            return leaves.length;
+        }
+
+        @Override
+        public Object slot(int index) {
+            return leaves[index];
+        }
+    }
+
+    /**
+     * Walks the trie depth first with an explicit stack of nodes and slot positions.
+     */
+    private static final class EntryIterator<K, V> implements Iterator<Entry<K, V>> {
+
+        private final Node[] nodes = new Node[Integer.SIZE / BITS + 2];
+        private final int[] positions = new int[nodes.length];
+        private int depth = -1;
+        private Leaf nextLeaf;
+
+        EntryIterator(Node root) {
+            if (root != null) {
+                nodes[++depth] = root;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (nextLeaf == null && depth >= 0) {
+                Node node = nodes[depth];
+                if (positions[depth] == node.slots()) {
+                    positions[depth--] = 0;
+                    continue;
+                }
+                Object slot = node.slot(positions[depth]++);
+                if (slot instanceof Leaf) {
+                    nextLeaf = (Leaf) slot;
+                } else {
+                    nodes[++depth] = (Node) slot;
+                }
+            }
+            return nextLeaf != null;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Entry<K, V> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Leaf leaf = nextLeaf;
+            nextLeaf = null;
+            return new SimpleImmutableEntry<K, V>((K) leaf.key, (V) leaf.value);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
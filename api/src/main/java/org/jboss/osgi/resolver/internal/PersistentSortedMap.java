@@ -0,0 +1,274 @@
+/*
+ * #%L
+ * JBossOSGi Resolver API
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.resolver.internal;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable sorted map that shares structure with the map it was derived from.
+ *
+ * The entries are kept in a balanced binary tree. An update copies the path to the changed entry only,
+ * which takes logarithmic time. Null keys and values are not supported.
+ *
+ * This class is shared by the environment and the resolver implementation, it is not part of the API.
+ *
+ * @author agent@local
+ * @since 17-Oct-2026
+ */
+public final class PersistentSortedMap<K extends Comparable<? super K>, V> {
+
+    @SuppressWarnings("rawtypes")
+    private static final PersistentSortedMap EMPTY = new PersistentSortedMap(null, 0);
+
+    private final Node root;
+    private final int size;
+
+    @SuppressWarnings("unchecked")
+    public static <K extends Comparable<? super K>, V> PersistentSortedMap<K, V> empty() {
+        return EMPTY;
+    }
+
+    private PersistentSortedMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsKey(K key) {
+        return get(key) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(K key) {
+        if (key == null)
+            return null;
+        Node node = root;
+        while (node != null) {
+            int comp = key.compareTo((K) node.key);
+            if (comp == 0)
+                return (V) node.value;
+            node = comp < 0 ? node.left : node.right;
+        }
+        return null;
+    }
+
+    public PersistentSortedMap<K, V> put(K key, V value) {
+        if (key == null)
+            throw new IllegalArgumentException("Null key");
+        if (value == null)
+            throw new IllegalArgumentException("Null value");
+        V previous = get(key);
+        if (previous == value)
+            return this;
+        return new PersistentSortedMap<K, V>(put(root, key, value), previous != null ? size : size + 1);
+    }
+
+    public PersistentSortedMap<K, V> remove(K key) {
+        if (get(key) == null)
+            return this;
+        Node node = remove(root, key);
+        return node != null ? new PersistentSortedMap<K, V>(node, size - 1) : PersistentSortedMap.<K, V> empty();
+    }
+
+    /**
+     * Get the values in key order.
+     */
+    public Iterable<V> values() {
+        return values(null, false, null, false);
+    }
+
+    /**
+     * Get the values of the keys in the given range in key order. A null bound does not limit the range.
+     */
+    public Iterable<V> values(final K from, final boolean fromInclusive, final K to, final boolean toInclusive) {
+        return new Iterable<V>() {
+            @Override
+            public Iterator<V> iterator() {
+                return new ValueIterator<K, V>(root, from, fromInclusive, to, toInclusive);
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K extends Comparable<? super K>> Node put(Node node, K key, Object value) {
+        if (node == null)
+            return new Node(key, value, null, null);
+        int comp = key.compareTo((K) node.key);
+        if (comp < 0)
+            return balance(node.key, node.value, put(node.left, key, value), node.right);
+        if (comp > 0)
+            return balance(node.key, node.value, node.left, put(node.right, key, value));
+        return new Node(node.key, value, node.left, node.right);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K extends Comparable<? super K>> Node remove(Node node, K key) {
+        int comp = key.compareTo((K) node.key);
+        if (comp < 0)
+            return balance(node.key, node.value, remove(node.left, key), node.right);
+        if (comp > 0)
+            return balance(node.key, node.value, node.left, remove(node.right, key));
+        if (node.left == null)
+            return node.right;
+        if (node.right == null)
+            return node.left;
+        Node first = node.right;
+        while (first.left != null) {
+            first = first.left;
+        }
+        return balance(first.key, first.value, node.left, removeFirst(node.right));
+    }
+
+    private static Node removeFirst(Node node) {
+        if (node.left == null)
+            return node.right;
+        return balance(node.key, node.value, removeFirst(node.left), node.right);
+    }
+
+    // Create a node from subtrees whose heights differ by at most two, rotate if they differ by two
+    private static Node balance(Object key, Object value, Node left, Node right) {
+        int leftHeight = height(left);
+        int rightHeight = height(right);
+        if (leftHeight > rightHeight + 1) {
+            if (height(left.left) >= height(left.right)) {
+                return new Node(left.key, left.value, left.left, new Node(key, value, left.right, right));
+            }
+            Node pivot = left.right;
+            return new Node(pivot.key, pivot.value, new Node(left.key, left.value, left.left, pivot.left), new Node(key, value, pivot.right, right));
+        }
+        if (rightHeight > leftHeight + 1) {
+            if (height(right.right) >= height(right.left)) {
+                return new Node(right.key, right.value, new Node(key, value, left, right.left), right.right);
+            }
+            Node pivot = right.left;
+            return new Node(pivot.key, pivot.value, new Node(key, value, left, pivot.left), new Node(right.key, right.value, pivot.right, right.right));
+        }
+        return new Node(key, value, left, right);
+    }
+
+    private static int height(Node node) {
+        return node != null ? node.height : 0;
+    }
+
+    private static final class Node {
+
+        private final Object key;
+        private final Object value;
+        private final Node left;
+        private final Node right;
+        private final int height;
+
+        Node(Object key, Object value, Node left, Node right) {
+            this.key = key;
+            this.value = value;
+            this.left = left;
+            this.right = right;
+            this.height = Math.max(height(left), height(right)) + 1;
+        }
+    }
+
+    /**
+     * Walks the tree in key order with an explicit stack of the nodes whose right subtree has not been visited.
+     */
+    private static final class ValueIterator<K extends Comparable<? super K>, V> implements Iterator<V> {
+
+        private final Node[] stack;
+        private int depth;
+        private final K from;
+        private final boolean fromInclusive;
+        private final K to;
+        private final boolean toInclusive;
+        private Node nextNode;
+
+        ValueIterator(Node root, K from, boolean fromInclusive, K to, boolean toInclusive) {
+            this.stack = new Node[height(root)];
+            this.from = from;
+            this.fromInclusive = fromInclusive;
+            this.to = to;
+            this.toInclusive = toInclusive;
+            pushLeft(root);
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (nextNode == null && depth > 0) {
+                Node node = stack[--depth];
+                pushLeft(node.right);
+                if (isAfterRange(node)) {
+                    depth = 0;
+                } else {
+                    nextNode = node;
+                }
+            }
+            return nextNode != null;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public V next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Node node = nextNode;
+            nextNode = null;
+            return (V) node.value;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        // Push the nodes on the path to the first key in range
+        private void pushLeft(Node node) {
+            while (node != null) {
+                if (isBeforeRange(node)) {
+                    node = node.right;
+                } else {
+                    stack[depth++] = node;
+                    node = node.left;
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private boolean isBeforeRange(Node node) {
+            if (from == null)
+                return false;
+            int comp = ((K) node.key).compareTo(from);
+            return comp < 0 || (comp == 0 && !fromInclusive);
+        }
+
+        @SuppressWarnings("unchecked")
+        private boolean isAfterRange(Node node) {
+            if (to == null)
+                return false;
+            int comp = ((K) node.key).compareTo(to);
+            return comp > 0 || (comp == 0 && !toInclusive);
+        }
+    }
+}
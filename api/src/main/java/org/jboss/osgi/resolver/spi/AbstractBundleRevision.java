@@ -33,7 +33,6 @@ import org.jboss.modules.ModuleIdentifier;
 import org.jboss.osgi.resolver.XBundle;
 import org.jboss.osgi.resolver.XBundleRevision;
 import org.jboss.osgi.resolver.XBundleWiringSupport;
-import org.jboss.osgi.resolver.XResource;
 import org.osgi.framework.Version;
 import org.osgi.framework.wiring.BundleCapability;
 import org.osgi.framework.wiring.BundleRequirement;
@@ -100,12 +99,6 @@ public class AbstractBundleRevision extends AbstractResource implements XBundleR
         return isFragment() ? BundleRevision.TYPE_FRAGMENT : 0;
     }
 
-    @Override
-    public boolean isFragment() {
-        String type = getIdentityCapability().getType();
-        return XResource.TYPE_FRAGMENT.equals(type);
-    }
-
     @Override
     public BundleWiring getWiring() {
         return getWiringSupport().getWiring(false);
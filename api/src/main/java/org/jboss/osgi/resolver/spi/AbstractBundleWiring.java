@@ -68,6 +68,10 @@ public class AbstractBundleWiring extends AbstractWiring implements XBundleWirin
         super(brev, required, provided);
     }
 
+    AbstractBundleWiring(XBundleRevision brev, boolean extendsCurrent) {
+        super(brev, extendsCurrent);
+    }
+
     @Override
     protected HostedCapability getHostedCapability(XCapability cap) {
         return new AbstractHostedBundleCapability(getResource(), cap);
@@ -27,21 +27,27 @@ import static org.osgi.framework.namespace.IdentityNamespace.CAPABILITY_TYPE_ATT
 import static org.osgi.framework.namespace.IdentityNamespace.CAPABILITY_VERSION_ATTRIBUTE;
 import static org.osgi.framework.namespace.PackageNamespace.PACKAGE_NAMESPACE;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
 
-import org.jboss.osgi.resolver.XAttributeSupport;
 import org.jboss.osgi.resolver.XCapability;
-import org.jboss.osgi.resolver.XDirectiveSupport;
 import org.jboss.osgi.resolver.XHostCapability;
 import org.jboss.osgi.resolver.XIdentityCapability;
 import org.jboss.osgi.resolver.XPackageCapability;
 import org.jboss.osgi.resolver.XProvidedCapability;
 import org.jboss.osgi.resolver.XResource;
 import org.jboss.osgi.resolver.XResourceCapability;
+import org.osgi.framework.Constants;
 import org.osgi.framework.Version;
 import org.osgi.framework.namespace.IdentityNamespace;
 import org.osgi.resource.Capability;
+import org.osgi.resource.Namespace;
 
 /**
  * The abstract implementation of a {@link XCapability}.
@@ -53,11 +59,13 @@ public class AbstractCapability extends AbstractElement implements XIdentityCapa
 
     private final String namespace;
     private final XResource resource;
-    private XAttributeSupport attributes;
-    private XDirectiveSupport directives;
+    private AttributeSupporter attributes;
+    private DirectiveSupporter directives;
     private String namespaceValue;
     private String canonicalName;
     private Version version;
+    private List<String> uses;
+    private Set<String> mandatory;
     private boolean valid;
 
     public AbstractCapability(XResource resource, String namespace, Map<String, Object> atts, Map<String, String> dirs) {
@@ -88,7 +96,7 @@ public class AbstractCapability extends AbstractElement implements XIdentityCapa
 
     @Override
     public Map<String, String> getDirectives() {
-        return isMutable() ? directives.getDirectives() : Collections.unmodifiableMap(directives.getDirectives());
+        return isMutable() ? directives.getDirectives() : directives.getImmutableDirectives();
     }
 
     @Override
@@ -98,7 +106,7 @@ public class AbstractCapability extends AbstractElement implements XIdentityCapa
 
     @Override
     public Map<String, Object> getAttributes() {
-        return isMutable() ? attributes.getAttributes() : Collections.unmodifiableMap(attributes.getAttributes());
+        return isMutable() ? attributes.getAttributes() : attributes.getImmutableAttributes();
     }
 
     @Override
@@ -109,6 +117,11 @@ public class AbstractCapability extends AbstractElement implements XIdentityCapa
     private boolean isMutable() {
         return resource.isMutable();
     }
+
+    void freeze() {
+        attributes.freeze();
+        directives.freeze();
+    }
     
     @Override
     public void validate() {
@@ -135,6 +148,8 @@ public class AbstractCapability extends AbstractElement implements XIdentityCapa
                 if (namespaceValue == null)
                     throw MESSAGES.illegalStateCannotObtainAttribute(getNamespace());
             }
+            uses = parseUses(getResource(), getDirective(Namespace.CAPABILITY_USES_DIRECTIVE));
+            mandatory = parseMandatory(getResource(), getDirective(Constants.MANDATORY_DIRECTIVE));
             canonicalName = toString();
             valid = true;
         }
@@ -171,10 +186,54 @@ public class AbstractCapability extends AbstractElement implements XIdentityCapa
         return version;
     }
 
+    /**
+     * Get the package names of the uses directive.
+     *
+     * @return An immutable list of package names, which is empty if the capability has no uses directive
+     */
+    public List<String> getUses() {
+        return valid ? uses : parseUses(getResource(), getDirective(Namespace.CAPABILITY_USES_DIRECTIVE));
+    }
+
+    static List<String> parseUses(XResource res, String usesdir) {
+        if (usesdir == null)
+            return Collections.emptyList();
+        InternPool internPool = InternPool.getPool(res);
+        List<String> result = new ArrayList<String>();
+        StringTokenizer tok = new StringTokenizer(usesdir, ",");
+        while (tok.hasMoreTokens()) {
+            String pkgname = tok.nextToken().trim();
+            if (pkgname.length() > 0) {
+                result.add(internPool.intern(pkgname));
+            }
+        }
+        return Collections.unmodifiableList(Arrays.asList(result.toArray(new String[result.size()])));
+    }
+
+    /**
+     * Get the attribute names of the mandatory directive.
+     */
+    Set<String> getMandatoryAttributes() {
+        return valid ? mandatory : parseMandatory(getResource(), getDirective(Constants.MANDATORY_DIRECTIVE));
+    }
+
+    static Set<String> parseMandatory(XResource res, String mandatorydir) {
+        if (mandatorydir == null)
+            return Collections.emptySet();
+        InternPool internPool = InternPool.getPool(res);
+        Set<String> result = new HashSet<String>();
+        for (String attname : mandatorydir.split("[,\\s]")) {
+            if (attname.length() > 0) {
+                result.add(internPool.intern(attname));
+            }
+        }
+        return Collections.unmodifiableSet(result);
+    }
+
     static Version getVersion(Capability cap, String attname) {
         Object attval = cap.getAttributes().get(attname);
         if (attval != null && !(attval instanceof Version)) {
-            attval = new Version(attval.toString());
+            attval = InternPool.getPool(cap.getResource()).getVersion(attval.toString());
             cap.getAttributes().put(attname, attval);
         }
         return attval != null ? (Version)attval : Version.emptyVersion;
@@ -23,32 +23,56 @@ import static org.jboss.osgi.resolver.ResolverLogger.LOGGER;
 import static org.jboss.osgi.resolver.ResolverMessages.MESSAGES;
 import static org.jboss.osgi.resolver.spi.ResolverHookProcessor.getCurrentProcessor;
 
+import java.lang.ref.WeakReference;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.jboss.osgi.resolver.XBundleRevision;
 import org.jboss.osgi.resolver.XCapability;
 import org.jboss.osgi.resolver.XEnvironment;
 import org.jboss.osgi.resolver.XIdentityCapability;
+import org.jboss.osgi.resolver.XIdentityRequirement;
 import org.jboss.osgi.resolver.XPackageCapability;
-import org.jboss.osgi.resolver.XPackageRequirement;
 import org.jboss.osgi.resolver.XRequirement;
 import org.jboss.osgi.resolver.XResource;
 import org.jboss.osgi.resolver.XResource.State;
+import org.jboss.osgi.resolver.XResourceBuilder;
+import org.jboss.osgi.resolver.XResourceBuilderFactory;
 import org.jboss.osgi.resolver.XWiring;
 import org.jboss.osgi.resolver.XWiringSupport;
+import org.jboss.osgi.resolver.internal.PersistentMap;
+import org.jboss.osgi.resolver.internal.PersistentSortedMap;
 import org.omg.CORBA.Environment;
+import org.osgi.framework.Filter;
+import org.osgi.framework.Version;
+import org.osgi.framework.VersionRange;
+import org.osgi.framework.namespace.AbstractWiringNamespace;
+import org.osgi.framework.namespace.BundleNamespace;
 import org.osgi.framework.namespace.HostNamespace;
+import org.osgi.framework.namespace.PackageNamespace;
 import org.osgi.framework.wiring.BundleCapability;
 import org.osgi.framework.wiring.BundleRequirement;
 import org.osgi.resource.Capability;
@@ -60,142 +84,469 @@ import org.osgi.resource.Wiring;
 /**
  * The abstract implementation of a {@link Environment}.
  *
+ * The capability and resource type indexes hold immutable snapshot sets. Writers serialize on the environment
+ * and publish a new snapshot for every bucket they touch, readers do not lock.
+ *
+ * A clone shares all indexes with the original environment. The resource indexes are persistent maps and the
+ * namespace indexes are immutable, a writer builds new namespace indexes and publishes them in one step.
+ *
+ * The capabilities that match a requirement filter are cached for {@link #findProviders(Requirement)}. Every
+ * capability bucket carries the epoch it was published with and a cached result is only used while the epochs
+ * it was computed for are unchanged. Whether a matching capability is provided depends on wirings that can change outside the
+ * environment, so it is checked on every lookup.
+ *
  * @author thomas.diesler@jboss.com
  * @since 02-Jul-2010
  */
 public class AbstractEnvironment implements XEnvironment, Cloneable {
 
+    // The minimum number of resources per parallel task of a batch install
+    private static final int MIN_PARALLEL_BATCH_SIZE = 64;
+    // The maximum number of cached provider lookups
+    private static final int MAX_PROVIDER_CACHE_SIZE = 4096;
+
     private final AtomicLong resourceIndex = new AtomicLong();
-    private final Map<CacheKey, Set<Capability>> capabilityCache = new ConcurrentHashMap<CacheKey, Set<Capability>>();
-    private final Map<String, Set<XResource>> resourceTypeCache = new ConcurrentHashMap<String, Set<XResource>>();
-    private final Map<Long, XResource> resourceIndexCache = new ConcurrentHashMap<Long, XResource>();
+    private volatile Map<String, NamespaceIndex> capabilityCache = Collections.emptyMap();
+    private volatile Map<String, Set<XResource>> resourceTypeCache = Collections.emptyMap();
+    private volatile PersistentLongMap<XResource> resourceIndexCache = PersistentLongMap.empty();
+    private final AtomicReference<PersistentMap<XResource, Boolean>> wiredResources;
+    private final WiringTracker wiringTracker;
+    private final Map<Resource, Wiring> wiringView = new WiringView();
+    private final Map<ProviderKey, ProviderEntry> providerCache = new ConcurrentHashMap<ProviderKey, ProviderEntry>();
+    private final AtomicLong epochs = new AtomicLong();
+    private final InternPool internPool;
+    private volatile FragmentIndex fragmentIndex = FragmentIndex.EMPTY;
 
     public AbstractEnvironment() {
+        internPool = new InternPool();
+        wiredResources = new AtomicReference<PersistentMap<XResource, Boolean>>(PersistentMap.<XResource, Boolean> empty());
+        wiringTracker = new WiringTracker();
+        wiringTracker.add(this);
     }
 
-    private AbstractEnvironment(AbstractEnvironment env) {
-        for (Entry<CacheKey, Set<Capability>> entry : env.capabilityCache.entrySet()) {
-            Set<Capability> caps = getCachedCapabilities(entry.getKey());
-            caps.addAll(entry.getValue());
-        }
-        for(Entry<String, Set<XResource>> entry : env.resourceTypeCache.entrySet()) {
-            Set<XResource> resset = getCachedResources(entry.getKey());
-            resset.addAll(entry.getValue());
+    /**
+     * Create a copy of the given environment that shares the indexes with it.
+     *
+     * The caller must hold the lock of the given environment.
+     */
+    protected AbstractEnvironment(AbstractEnvironment env) {
+        capabilityCache = env.capabilityCache;
+        resourceTypeCache = env.resourceTypeCache;
+        resourceIndexCache = env.resourceIndexCache;
+        fragmentIndex = env.fragmentIndex;
+        resourceIndex.set(env.resourceIndex.get());
+        epochs.set(env.epochs.get());
+        internPool = env.internPool;
+
+        // No wiring change is passed on while the wired resources are copied
+        wiringTracker = env.wiringTracker;
+        synchronized (wiringTracker) {
+            wiredResources = new AtomicReference<PersistentMap<XResource, Boolean>>(env.wiredResources.get());
+            wiringTracker.add(this);
         }
-        resourceIndexCache.putAll(env.resourceIndexCache);
     }
 
     @Override
-    public XEnvironment clone() {
+    public synchronized XEnvironment clone() {
         return new AbstractEnvironment(this);
     }
 
     @Override
     public Long nextResourceIdentifier(Long value, String symbolicName) {
-        synchronized (resourceIndex) {
-            if (value != null) {
-                resourceIndex.addAndGet(Math.max(0, value - resourceIndex.get()));
-                return value;
-            } else {
-                Long result = resourceIndex.incrementAndGet();
-                LOGGER.tracef("Resource identifier for %s: [%d,%d]", symbolicName, value, result);
-                return result;
+        if (value != null) {
+            // Move the last identifier forward to the given value
+            long current = resourceIndex.get();
+            while (value > current && !resourceIndex.compareAndSet(current, value)) {
+                current = resourceIndex.get();
             }
+            return value;
+        } else {
+            Long result = resourceIndex.incrementAndGet();
+            LOGGER.tracef("Resource identifier for %s: [%d,%d]", symbolicName, value, result);
+            return result;
+        }
+    }
+
+    /**
+     * Create a resource builder that shares attribute values, versions and version ranges with the other
+     * resources that were built for this environment or its clones.
+     */
+    public <T extends XResource> XResourceBuilder<T> createResourceBuilder(XResourceBuilderFactory<T> factory) {
+        if (factory == null)
+            throw MESSAGES.illegalArgumentNull("factory");
+
+        XResourceBuilder<T> builder = factory.createResourceBuilder();
+        if (builder instanceof AbstractResourceBuilder) {
+            ((AbstractResourceBuilder<T>) builder).setInternPool(internPool);
         }
+        return builder;
+    }
+
+    /**
+     * Index the capabilities in the given namespace by the values of the given attribute.
+     *
+     * A requirement with an equality condition on an indexed attribute, which is not the namespace attribute,
+     * only evaluates its filter against capabilities that have the requested value.
+     */
+    public synchronized void addAttributeIndex(String namespace, String attribute) {
+        if (namespace == null)
+            throw MESSAGES.illegalArgumentNull("namespace");
+        if (attribute == null)
+            throw MESSAGES.illegalArgumentNull("attribute");
+
+        NamespaceIndex nsindex = capabilityCache.get(namespace);
+        nsindex = (nsindex != null ? nsindex : new NamespaceIndex(namespace)).addAttributeIndex(attribute);
+        Map<String, NamespaceIndex> result = new HashMap<String, NamespaceIndex>(capabilityCache);
+        result.put(namespace, nsindex);
+        capabilityCache = Collections.unmodifiableMap(result);
     }
 
     @Override
-    public synchronized void installResources(XResource... resources) {
+    public void installResources(XResource... resources) {
+        installResources(null, resources);
+    }
+
+    /**
+     * Install a batch of resources.
+     *
+     * The capabilities of the resources are grouped by index bucket before the environment is locked, in parallel
+     * if an executor is given. The groups are then merged into the indexes and published in one step. Resources
+     * without an identifier get a contiguous block of identifiers. If a resource cannot be installed nothing is
+     * published and the identifiers and states of the resources are restored.
+     */
+    public void installResources(ExecutorService executor, XResource... resources) {
         if (resources == null)
             throw MESSAGES.illegalArgumentNull("resources");
 
-        for (XResource res : resources) {
-            XIdentityCapability icap = res.getIdentityCapability();
-            if (getCachedCapabilities(CacheKey.create(icap)).contains(icap))
-                throw MESSAGES.illegalStateResourceAlreadyInstalled(res);
+        List<PreparedResources> batches = prepareResources(executor, resources);
+        synchronized (this) {
+            installPreparedResources(batches);
+        }
+    }
+
+    private void installPreparedResources(List<PreparedResources> batches) {
+        Map<CacheKey, Set<Capability>> capupdates = new HashMap<CacheKey, Set<Capability>>();
+        Map<String, Set<XResource>> typeupdates = new HashMap<String, Set<XResource>>();
+        List<XResource> hostsOrFragments = new ArrayList<XResource>();
 
-            LOGGER.debugf("Install resource: %s", res);
+        // Check all resources before the indexes are modified
+        Set<Capability> icaps = new HashSet<Capability>();
+        int unidentified = 0;
+        for (PreparedResources batch : batches) {
+            for (XResource res : batch.resources) {
+                XIdentityCapability icap = res.getIdentityCapability();
+                if (!icaps.add(icap) || getWritableCapabilities(capupdates, CacheKey.create(icap)).contains(icap))
+                    throw MESSAGES.illegalStateResourceAlreadyInstalled(res);
+                if (res.getAttachment(XResource.RESOURCE_IDENTIFIER_KEY) == null) {
+                    unidentified++;
+                }
+            }
+        }
 
-            // Add resource to index
-            Long index = nextResourceIdentifier(res.getAttachment(XResource.RESOURCE_IDENTIFIER_KEY), icap.getName());
-            res.putAttachment(XResource.RESOURCE_IDENTIFIER_KEY, index);
-            resourceIndexCache.put(index, res);
+        // Build the new indexes off to the side, they are only published if every resource was installed
+        Map<AbstractResource, Long> attachments = new LinkedHashMap<AbstractResource, Long>();
+        Map<AbstractResource, State> states = new HashMap<AbstractResource, State>();
+        PersistentLongMap<XResource> resindex = resourceIndexCache;
+        Map<String, NamespaceIndex> capcache;
+        FragmentIndex fragindex = fragmentIndex;
+        long[] identifiers = reserveResourceIdentifiers(unidentified);
+        int next = 0;
+        boolean success = false;
+        try {
+            for (PreparedResources batch : batches) {
+                for (XResource res : batch.resources) {
+                    XIdentityCapability icap = res.getIdentityCapability();
+                    AbstractResource absres = AbstractResource.assertAbstractResource(res);
+                    LOGGER.debugf("Install resource: %s", res);
 
-            // Add resource by type
-            getCachedResources(icap.getType()).add(res);
+                    // Add resource to index
+                    Long index = res.getAttachment(XResource.RESOURCE_IDENTIFIER_KEY);
+                    attachments.put(absres, index);
+                    if (index == null) {
+                        index = identifiers[next++];
+                        LOGGER.tracef("Resource identifier for %s: %d", icap.getName(), index);
+                    } else {
+                        index = nextResourceIdentifier(index, icap.getName());
+                    }
+                    res.putAttachment(XResource.RESOURCE_IDENTIFIER_KEY, index);
+                    resindex = resindex.put(index, res);
 
-            // Add resource capabilites
-            for (Capability cap : res.getCapabilities(null)) {
-                CacheKey cachekey = CacheKey.create(cap);
-                getCachedCapabilities(cachekey).add(cap);
-                LOGGER.debugf("   %s", cap);
+                    // Add resource by type
+                    getWritableSet(resourceTypeCache, typeupdates, icap.getType()).add(res);
+
+                    if (LOGGER.isDebugEnabled()) {
+                        for (Capability cap : res.getCapabilities(null)) {
+                            LOGGER.debugf("   %s", cap);
+                        }
+                        for (Requirement req : res.getRequirements(null)) {
+                            LOGGER.debugf("   %s", req);
+                        }
+                    }
+
+                    // Set the resource state
+                    states.put(absres, absres.getState());
+                    absres.setState(State.INSTALLED);
+                    if (isHostOrFragment(res)) {
+                        hostsOrFragments.add(res);
+                    }
+                }
+
+                // Add resource capabilites
+                for (Entry<CacheKey, List<Capability>> entry : batch.capabilities.entrySet()) {
+                    getWritableCapabilities(capupdates, entry.getKey()).addAll(entry.getValue());
+                }
+            }
+            capcache = capupdates.isEmpty() ? capabilityCache : updateNamespaceIndexes(capabilityCache, capupdates, epochs.incrementAndGet());
+            if (!hostsOrFragments.isEmpty()) {
+                fragindex = indexFragments(fragindex, capcache, hostsOrFragments);
+            }
+            success = true;
+        } finally {
+            if (!success) {
+                // Nothing was published, undo the changes to the resources
+                for (Entry<AbstractResource, Long> entry : attachments.entrySet()) {
+                    if (entry.getValue() != null) {
+                        entry.getKey().putAttachment(XResource.RESOURCE_IDENTIFIER_KEY, entry.getValue());
+                    } else {
+                        entry.getKey().removeAttachment(XResource.RESOURCE_IDENTIFIER_KEY);
+                    }
+                }
+                for (Entry<AbstractResource, State> entry : states.entrySet()) {
+                    entry.getKey().setState(entry.getValue());
+                }
+            }
+        }
+
+        // Publish the capabilities last, a reader that finds a capability also finds its resource
+        resourceIndexCache = resindex;
+        resourceTypeCache = publishSnapshots(resourceTypeCache, typeupdates);
+        fragmentIndex = fragindex;
+        if (capcache != capabilityCache) {
+            capabilityCache = capcache;
+            pruneProviderCache();
+        }
+
+        // Track the wirings of the installed resources, a resource may come with an existing wiring
+        for (PreparedResources batch : batches) {
+            for (XResource res : batch.resources) {
+                trackWiring(res);
             }
-            if (LOGGER.isDebugEnabled()) {
-                for (Requirement req : res.getRequirements(null)) {
-                    LOGGER.debugf("   %s", req);
+        }
+    }
+
+    // Get a contiguous block of identifiers
+    long[] reserveResourceIdentifiers(int count) {
+        long[] result = new long[count];
+        long first = resourceIndex.getAndAdd(count) + 1;
+        for (int i = 0; i < count; i++) {
+            result[i] = first + i;
+        }
+        return result;
+    }
+
+    // Group the capabilities of the resources by index bucket
+    private static List<PreparedResources> prepareResources(ExecutorService executor, final XResource[] resources) {
+        int count = executor != null ? Math.min(Runtime.getRuntime().availableProcessors(), resources.length / MIN_PARALLEL_BATCH_SIZE) : 1;
+        if (count <= 1) {
+            return Collections.singletonList(new PreparedResources(resources, 0, resources.length));
+        }
+        List<Future<PreparedResources>> futures = new ArrayList<Future<PreparedResources>>();
+        int size = (resources.length + count - 1) / count;
+        for (int from = 0; from < resources.length; from += size) {
+            final int start = from;
+            final int end = Math.min(from + size, resources.length);
+            futures.add(executor.submit(new Callable<PreparedResources>() {
+                @Override
+                public PreparedResources call() {
+                    return new PreparedResources(resources, start, end);
                 }
+            }));
+        }
+        List<PreparedResources> result = new ArrayList<PreparedResources>();
+        try {
+            for (Future<PreparedResources> future : futures) {
+                result.add(future.get());
             }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            cancelAll(futures);
+            return Collections.singletonList(new PreparedResources(resources, 0, resources.length));
+        } catch (ExecutionException ex) {
+            cancelAll(futures);
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IllegalStateException(cause);
+        }
+        return result;
+    }
 
-            // Set the resource state
-            AbstractResource absres = AbstractResource.assertAbstractResource(res);
-            absres.setState(State.INSTALLED);
+    private static void cancelAll(List<? extends Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(true);
         }
     }
 
     @Override
-    public synchronized void uninstallResources(XResource... resources) {
+    public void uninstallResources(XResource... resources) {
         if (resources == null)
             throw MESSAGES.illegalArgumentNull("resources");
 
-        for (XResource res : resources) {
+        uninstallResources(Arrays.asList(resources));
+    }
 
-            // Remove resource by index
-            Long index = res.getAttachment(XResource.RESOURCE_IDENTIFIER_KEY);
-            if (index == null || resourceIndexCache.remove(index) == null) {
-                LOGGER.debugf("Unknown resource: %s", res);
-                continue;
+    /**
+     * Uninstall a batch of resources.
+     *
+     * The capabilities are grouped by index bucket before the environment is locked and every affected bucket
+     * is rebuilt once. The wirings are refreshed with requirers before their providers.
+     *
+     * @return the time in nanoseconds that the environment was locked
+     */
+    public long uninstallResources(Collection<? extends XResource> resources) {
+        if (resources == null)
+            throw MESSAGES.illegalArgumentNull("resources");
+
+        List<XResource> ordered = getRefreshOrder(resources);
+        List<XResource> installed = getInstalledResources(ordered);
+        PreparedResources prepared = new PreparedResources(installed.toArray(new XResource[installed.size()]), 0, installed.size());
+        synchronized (this) {
+            long start = System.nanoTime();
+
+            // Another thread may have changed the installed resources in the meantime
+            List<XResource> current = getInstalledResources(ordered);
+            if (!current.equals(installed)) {
+                prepared = new PreparedResources(current.toArray(new XResource[current.size()]), 0, current.size());
+            }
+            uninstallPreparedResources(prepared);
+
+            long locked = System.nanoTime() - start;
+            LOGGER.debugf("Uninstalled %d resources, environment locked for %dms", prepared.resources.size(), TimeUnit.NANOSECONDS.toMillis(locked));
+            return locked;
+        }
+    }
+
+    private void uninstallPreparedResources(PreparedResources prepared) {
+        Map<CacheKey, Set<Capability>> capupdates = new HashMap<CacheKey, Set<Capability>>();
+        Map<String, Set<XResource>> typeupdates = new HashMap<String, Set<XResource>>();
+        try {
+            // Rebuild every affected bucket once
+            for (Entry<CacheKey, List<Capability>> entry : prepared.capabilities.entrySet()) {
+                CacheKey key = entry.getKey();
+                NamespaceIndex nsindex = capabilityCache.get(key.getNamespace());
+                Set<Capability> snapshot = nsindex != null ? nsindex.get(key.getValue()) : null;
+                if (snapshot != null) {
+                    Set<Capability> removed = new HashSet<Capability>(entry.getValue());
+                    Set<Capability> result = new LinkedHashSet<Capability>();
+                    for (Capability cap : snapshot) {
+                        if (!removed.contains(cap)) {
+                            result.add(cap);
+                        }
+                    }
+                    capupdates.put(key, result);
+                }
             }
 
-            LOGGER.debugf("Uninstall resource: %s", res);
+            for (XResource res : prepared.resources) {
+                LOGGER.debugf("Uninstall resource: %s", res);
+
+                // Remove resource by index
+                resourceIndexCache = resourceIndexCache.remove(res.getAttachment(XResource.RESOURCE_IDENTIFIER_KEY));
+
+                // Remove resource by type
+                XIdentityCapability icap = res.getIdentityCapability();
+                getWritableSet(resourceTypeCache, typeupdates, icap.getType()).remove(res);
 
-            // Remove resource by type
-            XIdentityCapability icap = res.getIdentityCapability();
-            getCachedResources(icap.getType()).remove(res);
+                // Remove wirings
+                res.getWiringSupport().refresh();
+                updateWiredResource(res);
 
-            // Remove resource capabilities
-            for (Capability cap : res.getCapabilities(null)) {
-                CacheKey cachekey = CacheKey.create(cap);
-                Set<Capability> cachecaps = getCachedCapabilities(cachekey);
-                cachecaps.remove(cap);
-                if (cachecaps.isEmpty()) {
-                    capabilityCache.remove(cachekey);
+                // Set the resource state
+                AbstractResource absres = AbstractResource.assertAbstractResource(res);
+                absres.setState(State.UNINSTALLED);
+                if (isHostOrFragment(res)) {
+                    XRequirement hostreq = getHostRequirement(res);
+                    fragmentIndex = fragmentIndex.remove(res, hostreq != null ? getHostName(hostreq) : null);
                 }
             }
+        } finally {
+            publishCapabilities(capupdates);
+            resourceTypeCache = publishSnapshots(resourceTypeCache, typeupdates);
+        }
+    }
+
+    private List<XResource> getInstalledResources(List<XResource> resources) {
+        List<XResource> result = new ArrayList<XResource>();
+        for (XResource res : resources) {
+            Long index = res.getAttachment(XResource.RESOURCE_IDENTIFIER_KEY);
+            if (index != null && resourceIndexCache.get(index) == res) {
+                result.add(res);
+            } else {
+                LOGGER.debugf("Unknown resource: %s", res);
+            }
+        }
+        return result;
+    }
 
-            // Remove wirings
-            res.getWiringSupport().refresh();
+    // Order the resources so that the requirers of a provider in the batch come before the provider
+    private static List<XResource> getRefreshOrder(Collection<? extends XResource> resources) {
+        Set<XResource> batch = new HashSet<XResource>();
+        for (XResource res : resources) {
+            if (res == null)
+                throw MESSAGES.illegalArgumentNull("resource");
+            batch.add(res);
+        }
+        Set<XResource> visited = new LinkedHashSet<XResource>();
+        for (XResource res : resources) {
+            addRequirersFirst(res, batch, visited);
+        }
+        return new ArrayList<XResource>(visited);
+    }
 
-            // Set the resource state
-            AbstractResource absres = AbstractResource.assertAbstractResource(res);
-            absres.setState(State.UNINSTALLED);
+    private static void addRequirersFirst(XResource res, Set<XResource> batch, Set<XResource> visited) {
+        if (visited.contains(res))
+            return;
+        XWiring wiring = res.getWiringSupport().getWiring(false);
+        if (wiring != null) {
+            // Mark the resource before its requirers are added, which breaks wiring cycles
+            Set<XResource> pending = new LinkedHashSet<XResource>();
+            for (Wire wire : wiring.getProvidedResourceWires(null)) {
+                XResource requirer = (XResource) wire.getRequirer();
+                if (requirer != res && batch.contains(requirer) && !visited.contains(requirer)) {
+                    pending.add(requirer);
+                }
+            }
+            if (!pending.isEmpty()) {
+                batch.remove(res);
+                for (XResource requirer : pending) {
+                    addRequirersFirst(requirer, batch, visited);
+                }
+                batch.add(res);
+            }
         }
+        visited.add(res);
     }
 
     @Override
-    public synchronized XResource getResourceById(long resId) {
+    public XResource getResourceById(long resId) {
         return resourceIndexCache.get(resId);
     }
 
     @Override
-    public synchronized Iterator<XResource> getResources(Collection<String> types) {
-        final Iterator<String> ittype = (types != null ? types : resourceTypeCache.keySet()).iterator();
+    public Iterator<XResource> getResources(Collection<String> types) {
+        final Map<String, Set<XResource>> typecache = resourceTypeCache;
+        final Iterator<String> ittype = (types != null ? types : typecache.keySet()).iterator();
         return new Iterator<XResource>() {
             Iterator<XResource> itres = Collections.<XResource>emptyList().iterator();
             @Override
             public boolean hasNext() {
                 while (!itres.hasNext() && ittype.hasNext()) {
-                    Set<XResource> resources = getCachedResources(ittype.next());
-                    itres = new LinkedHashSet<XResource>(resources).iterator();
+                    Set<XResource> resources = typecache.get(ittype.next());
+                    if (resources != null) {
+                        itres = resources.iterator();
+                    }
                 }
                 return itres.hasNext();
             }
@@ -213,69 +564,11 @@ public class AbstractEnvironment implements XEnvironment, Cloneable {
     }
 
     @Override
-    public synchronized List<Capability> findProviders(Requirement req) {
+    public List<Capability> findProviders(Requirement req) {
         if (req == null)
             throw MESSAGES.illegalArgumentNull("req");
 
-        XRequirement xreq = (XRequirement) req;
-        CacheKey cachekey = CacheKey.create(req);
-        List<Capability> result = new ArrayList<Capability>();
-        for (Capability cap : findCachedCapabilities(cachekey)) {
-            if (xreq.matches(cap)) {
-                boolean ignoreCapability = false;
-                XCapability xcap = (XCapability) cap;
-                XResource capres = xcap.getResource();
-
-                // Do not allow new wires to unresolved resources
-                XWiringSupport wiringSupport = capres.getWiringSupport();
-                if (!wiringSupport.isEffective()) {
-                    continue;
-                }
-
-                // Check if the package capability has been substituted
-                Wiring wiring = wiringSupport.getWiring(true);
-                if (wiring != null && xcap.adapt(XPackageCapability.class) != null) {
-                    String pkgname = xcap.adapt(XPackageCapability.class).getPackageName();
-                    for (Wire wire : wiring.getRequiredResourceWires(cap.getNamespace())) {
-                        XRequirement wirereq = (XRequirement) wire.getRequirement();
-                        XPackageRequirement preq = wirereq.adapt(XPackageRequirement.class);
-                        if (pkgname.equals(preq.getPackageName())) {
-                            ignoreCapability = true;
-                            break;
-                        }
-                    }
-                }
-                if (ignoreCapability) {
-                    continue;
-                }
-
-                // A fragment can only provide a capability if it is either already attached
-                // or if there is one possible hosts that it can attach to
-                // i.e. one of the hosts in the range is not resolved already
-                List<Requirement> hostreqs = capres.getRequirements(HostNamespace.HOST_NAMESPACE);
-                if (wiring == null && !hostreqs.isEmpty()) {
-                    boolean unresolvedHost = false;
-                    XRequirement hostreq = (XRequirement) hostreqs.get(0);
-                    Set<Capability> hostcaps = capabilityCache.get(CacheKey.create(hostreq));
-                    if (hostcaps != null) {
-                        for (Capability hostcap : hostcaps) {
-                            if (hostreq.matches(hostcap)) {
-                                XResource host = (XResource) hostcap.getResource();
-                                if (host.getWiringSupport().getWiring(true) == null) {
-                                    unresolvedHost = true;
-                                    break;
-                                }
-                            }
-                        }
-                    }
-                    ignoreCapability = !unresolvedHost;
-                }
-
-                if (!ignoreCapability) {
-                    result.add(cap);
-                }
-            }
-        }
+        List<Capability> result = findMatchingProviders((XRequirement) req);
 
         // Filter the matches by calling the registered {@link ResolverHook}s
         ResolverHookProcessor hookregs = getCurrentProcessor();
@@ -283,7 +576,7 @@ public class AbstractEnvironment implements XEnvironment, Cloneable {
             Collection<BundleCapability> bcaps = new ArrayList<BundleCapability>();
             for (Capability cap : result) {
                 XResource res = (XResource) cap.getResource();
-                if (res.getWiringSupport().getWiring(true) != null || hookregs.hasResource(res)) {
+                if (getWiring(res) != null || hookregs.hasResource(res)) {
                     bcaps.add((BundleCapability) cap);
                 }
             }
@@ -304,6 +597,82 @@ public class AbstractEnvironment implements XEnvironment, Cloneable {
         return result;
     }
 
+    // Get the providers before the resolver hooks are applied
+    private List<Capability> findMatchingProviders(XRequirement xreq) {
+        List<Capability> result = new ArrayList<Capability>();
+        for (Capability cap : findMatchingCapabilities(xreq)) {
+            if (isProvided((XCapability) cap)) {
+                result.add(cap);
+            }
+        }
+        return result;
+    }
+
+    // Get the capabilities that match the given requirement, whether they are provided or not
+    Collection<Capability> findMatchingCapabilities(XRequirement xreq) {
+        return getProviderEntry(xreq).matches;
+    }
+
+    // True if the given matching capability can be wired to
+    private boolean isProvided(XCapability xcap) {
+        XResource capres = xcap.getResource();
+
+        // Do not allow new wires to unresolved resources
+        XWiringSupport wiringSupport = capres.getWiringSupport();
+        if (!wiringSupport.isEffective()) {
+            return false;
+        }
+
+        // Check if the package capability has been substituted
+        XWiring wiring = getWiring(capres);
+        if (wiring != null) {
+            XPackageCapability pcap = xcap.adapt(XPackageCapability.class);
+            return pcap == null || !AbstractWiring.isSubstitutedPackage(wiring, pcap.getPackageName());
+        }
+
+        // A fragment can only provide a capability if it is either already attached
+        // or if there is one possible hosts that it can attach to
+        // i.e. one of the hosts in the range is not resolved already
+        List<Requirement> hostreqs = capres.getRequirements(HostNamespace.HOST_NAMESPACE);
+        return hostreqs.isEmpty() || hasUnresolvedHost(capres, (XRequirement) hostreqs.get(0));
+    }
+
+    /**
+     * Get the installed fragments with a host requirement that matches the given host capability.
+     */
+    public List<XResource> getAttachableFragments(Capability hostcap) {
+        if (hostcap == null)
+            throw MESSAGES.illegalArgumentNull("hostcap");
+
+        List<XResource> result = new ArrayList<XResource>();
+        Object hostName = hostcap.getAttributes().get(hostcap.getNamespace());
+        for (XResource fragment : fragmentIndex.getFragments(hostName instanceof String ? (String) hostName : null)) {
+            if (getHostRequirement(fragment).matches(hostcap)) {
+                result.add(fragment);
+            }
+        }
+        return result;
+    }
+
+    // True if one of the hosts that the given fragment can attach to is not resolved
+    boolean hasUnresolvedHost(XResource fragment, XRequirement hostreq) {
+        Set<XResource> hosts = fragmentIndex.getHosts(fragment);
+        if (hosts == null) {
+            hosts = new HashSet<XResource>();
+            for (Capability hostcap : findCachedCapabilities(capabilityCache, hostreq)) {
+                if (hostreq.matches(hostcap)) {
+                    hosts.add((XResource) hostcap.getResource());
+                }
+            }
+        }
+        for (XResource host : hosts) {
+            if (getWiring(host) == null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public synchronized Map<Resource, Wiring> updateWiring(Map<Resource, List<Wire>> wiremap) {
         if (wiremap == null)
@@ -314,138 +683,831 @@ public class AbstractEnvironment implements XEnvironment, Cloneable {
 
             XResource requirer = (XResource) entry.getKey();
             List<Wire> reqwires = entry.getValue();
-            XWiringSupport rwsupport = requirer.getWiringSupport();
-            XWiring reqwiring = rwsupport.getWiring(true);
-            if (reqwiring == null) {
-                reqwiring = createWiring(requirer, reqwires, null);
-                rwsupport.setWiring(reqwiring);
-            } else {
-                for (Wire wire : reqwires) {
-                    reqwiring.addRequiredWire(wire);
-                }
+            XWiring reqwiring = getWritableWiring(requirer);
+            for (Wire wire : reqwires) {
+                reqwiring.addRequiredWire(wire);
             }
             result.put(requirer, reqwiring);
 
             for (Wire wire : reqwires) {
                 XResource provider = (XResource) wire.getProvider();
-                XWiringSupport pwsupport = provider.getWiringSupport();
-                XWiring provwiring = pwsupport.getWiring(true);
-                if (provwiring == null) {
-                    provwiring = createWiring(provider, null, null);
-                    pwsupport.setWiring(provwiring);
-                }
-                provwiring.addProvidedWire(wire);
+                getWritableWiring(provider).addProvidedWire(wire);
             }
         }
 
         return Collections.unmodifiableMap(result);
     }
 
-    @Override
-    public synchronized Map<Resource, Wiring> getWirings() {
-        Map<Resource, Wiring> result = new HashMap<Resource, Wiring>();
-        for (XResource res : resourceIndexCache.values()) {
-            Wiring wiring = res.getWiringSupport().getWiring(true);
-            if (wiring != null) {
-                result.put(res, wiring);
+    // Get the wiring of the given resource in this environment
+    XWiring getWiring(XResource res) {
+        return res.getWiringSupport().getWiring(true);
+    }
+
+    // Get the wiring that this environment adds wires of the given resource to, create it if there is none
+    XWiring getWritableWiring(XResource res) {
+        XWiringSupport wiringSupport = res.getWiringSupport();
+        XWiring wiring = wiringSupport.getWiring(true);
+        if (wiring == null) {
+            wiring = createWiring(res, false);
+            wiringSupport.setWiring(wiring);
+        }
+        updateWiredResource(res);
+        return wiring;
+    }
+
+    // Register for the wiring changes of an installed resource, which also happen outside of the environment
+    private void trackWiring(XResource res) {
+        XWiringSupport wiringSupport = res.getWiringSupport();
+        if (wiringSupport instanceof AbstractWiringSupport) {
+            ((AbstractWiringSupport) wiringSupport).addListener(new TrackedResource(wiringTracker, res));
+        }
+        updateWiredResource(res);
+    }
+
+    // Add or remove the given resource from the wired resources, depending on whether it is installed with an effective wiring
+    private void updateWiredResource(XResource res) {
+        while (true) {
+            boolean wired = isWired(res);
+            PersistentMap<XResource, Boolean> current = wiredResources.get();
+            PersistentMap<XResource, Boolean> next = wired ? current.put(res, Boolean.TRUE) : current.remove(res);
+            // Check again after the update, a concurrent change of the wiring may have been overwritten
+            if ((next == current || wiredResources.compareAndSet(current, next)) && wired == isWired(res)) {
+                return;
             }
         }
-        return Collections.unmodifiableMap(result);
     }
 
-    private XWiring createWiring(XResource res, List<Wire> required, List<Wire> provided) {
+    private boolean isWired(XResource res) {
+        Long index = res.getAttachment(XResource.RESOURCE_IDENTIFIER_KEY);
+        return index != null && resourceIndexCache.get(index) == res && res.getWiringSupport().getWiring(true) != null;
+    }
+
+    /**
+     * Get a live, read-only view of the effective wirings in this environment.
+     *
+     * The view holds the installed resources with an effective wiring. It is maintained incrementally by
+     * {@link #updateWiring(Map)}, {@link #uninstallResources(XResource...)} and by the wiring changes of the
+     * installed resources, which are also observed if they happen outside of the environment.
+     * Lookups by resource and the size of the view do not allocate. The view is safe for concurrent readers, the
+     * wirings it returns are not safe to read while wires are added to them.
+     */
+    @Override
+    public Map<Resource, Wiring> getWirings() {
+        return wiringView;
+    }
+
+    // Create a wiring that optionally extends the current wiring of the resource
+    static XWiring createWiring(XResource res, boolean extendsCurrent) {
         if (res instanceof XBundleRevision) {
-            return new AbstractBundleWiring((XBundleRevision) res, required, provided);
+            return new AbstractBundleWiring((XBundleRevision) res, extendsCurrent);
         } else {
-            return new AbstractWiring(res, required, provided);
+            return new AbstractWiring(res, extendsCurrent);
+        }
+    }
+
+    private ProviderEntry getProviderEntry(XRequirement xreq) {
+        ProviderKey provkey = ProviderKey.create(xreq);
+        if (provkey != null) {
+            ProviderEntry entry = providerCache.get(provkey);
+            if (entry != null && isValid(entry)) {
+                return entry;
+            }
+        }
+
+        // Read the namespace index once, the epoch and the capabilities of an index belong together
+        NamespaceIndex nsindex = capabilityCache.get(xreq.getNamespace());
+        ProviderEntry entry = createProviderEntry(xreq, nsindex);
+        if (provkey != null && nsindex != null) {
+            if (providerCache.size() >= MAX_PROVIDER_CACHE_SIZE) {
+                providerCache.clear();
+            }
+            providerCache.put(provkey, entry);
+        }
+        return entry;
+    }
+
+    private boolean isValid(ProviderEntry entry) {
+        NamespaceIndex nsindex = capabilityCache.get(entry.namespace);
+        return nsindex != null && nsindex.getEpoch(entry.value) == entry.epoch;
+    }
+
+    private static ProviderEntry createProviderEntry(XRequirement xreq, NamespaceIndex nsindex) {
+        CacheKey cachekey = CacheKey.create(xreq);
+        String value = cachekey.isExact() ? cachekey.getValue() : null;
+        long epoch = nsindex != null ? nsindex.getEpoch(value) : 0;
+
+        List<Capability> result = new ArrayList<Capability>();
+        for (Capability cap : findCachedCapabilities(nsindex, xreq)) {
+            if (xreq.matches(cap)) {
+                result.add(cap);
+            }
+        }
+        return new ProviderEntry(result, cachekey.getNamespace(), value, epoch);
+    }
+
+    private static Set<Capability> findCachedCapabilities(Map<String, NamespaceIndex> cache, XRequirement xreq) {
+        return findCachedCapabilities(cache.get(xreq.getNamespace()), xreq);
+    }
+
+    private static Set<Capability> findCachedCapabilities(NamespaceIndex nsindex, XRequirement xreq) {
+        if (nsindex == null)
+            return Collections.emptySet();
+
+        FilterMatcher matcher = xreq instanceof AbstractRequirement ? ((AbstractRequirement) xreq).getFilterMatcher() : null;
+        return nsindex.find(CacheKey.create(xreq), getVersionRange(xreq), matcher);
+    }
+
+    // Other requirement implementations are matched against all capabilities of the namespace value
+    private static VersionRange getVersionRange(XRequirement xreq) {
+        if (xreq instanceof AbstractRequirement)
+            return ((AbstractRequirement) xreq).getVersionRange();
+        XIdentityRequirement ireq = xreq.adapt(XIdentityRequirement.class);
+        return ireq != null ? ireq.getVersionRange() : null;
+    }
+
+    private Set<Capability> getWritableCapabilities(Map<CacheKey, Set<Capability>> updates, CacheKey key) {
+        Set<Capability> result = updates.get(key);
+        if (result == null) {
+            NamespaceIndex nsindex = capabilityCache.get(key.getNamespace());
+            Set<Capability> snapshot = nsindex != null ? nsindex.get(key.getValue()) : null;
+            result = snapshot != null ? new LinkedHashSet<Capability>(snapshot) : new LinkedHashSet<Capability>();
+            updates.put(key, result);
+        }
+        return result;
+    }
+
+    private void publishCapabilities(Map<CacheKey, Set<Capability>> updates) {
+        if (updates.isEmpty())
+            return;
+
+        capabilityCache = updateNamespaceIndexes(capabilityCache, updates, epochs.incrementAndGet());
+        pruneProviderCache();
+    }
+
+    // Drop the cached lookups of the republished buckets, they may hold removed capabilities
+    private void pruneProviderCache() {
+        for (Iterator<ProviderEntry> it = providerCache.values().iterator(); it.hasNext();) {
+            if (!isValid(it.next())) {
+                it.remove();
+            }
         }
     }
 
-    private synchronized Set<Capability> getCachedCapabilities(CacheKey key) {
-        Set<Capability> capset = capabilityCache.get(key);
-        if (capset == null) {
-            capset = new LinkedHashSet<Capability>();
-            capabilityCache.put(key, capset);
+    // Build the namespace indexes with the given buckets replaced, the given indexes are not modified
+    private static Map<String, NamespaceIndex> updateNamespaceIndexes(Map<String, NamespaceIndex> cache, Map<CacheKey, Set<Capability>> updates, long epoch) {
+        Map<String, Map<String, Set<Capability>>> buckets = new HashMap<String, Map<String, Set<Capability>>>();
+        for (Entry<CacheKey, Set<Capability>> entry : updates.entrySet()) {
+            CacheKey key = entry.getKey();
+            Map<String, Set<Capability>> nsbuckets = buckets.get(key.getNamespace());
+            if (nsbuckets == null) {
+                nsbuckets = new HashMap<String, Set<Capability>>();
+                buckets.put(key.getNamespace(), nsbuckets);
+            }
+            nsbuckets.put(key.getValue(), entry.getValue());
+        }
+        Map<String, NamespaceIndex> result = new HashMap<String, NamespaceIndex>(cache);
+        for (Entry<String, Map<String, Set<Capability>>> entry : buckets.entrySet()) {
+            NamespaceIndex nsindex = cache.get(entry.getKey());
+            nsindex = nsindex != null ? nsindex : new NamespaceIndex(entry.getKey());
+            result.put(entry.getKey(), nsindex.update(entry.getValue(), epoch));
         }
-        return capset;
+        return Collections.unmodifiableMap(result);
+    }
+
+    // A change to a host or fragment may change the capabilities that unattached fragments provide
+    private static boolean isHostOrFragment(XResource res) {
+        return !res.getCapabilities(HostNamespace.HOST_NAMESPACE).isEmpty() || !res.getRequirements(HostNamespace.HOST_NAMESPACE).isEmpty();
+    }
+
+    private static XRequirement getHostRequirement(XResource res) {
+        List<Requirement> hostreqs = res.getRequirements(HostNamespace.HOST_NAMESPACE);
+        return hostreqs.isEmpty() ? null : (XRequirement) hostreqs.get(0);
     }
 
-    private synchronized Set<Capability> findCachedCapabilities(CacheKey key) {
-        Set<Capability> capset = capabilityCache.get(key);
-        if (capset == null) {
-            capset = new LinkedHashSet<Capability>();
-            // do not add this to the capabilityCache
+    // Get the symbolic name of the required host or null if the requirement does not name a single host
+    private static String getHostName(XRequirement hostreq) {
+        CacheKey cachekey = CacheKey.create(hostreq);
+        return cachekey.isExact() ? cachekey.getValue() : null;
+    }
+
+    // Link the installed fragments and the hosts they can attach to
+    private static FragmentIndex indexFragments(FragmentIndex index, Map<String, NamespaceIndex> capcache, List<XResource> resources) {
+        for (XResource res : resources) {
+            XRequirement hostreq = getHostRequirement(res);
+            if (hostreq != null) {
+                index = index.addFragment(res, getHostName(hostreq));
+                for (Capability hostcap : findCachedCapabilities(capcache, hostreq)) {
+                    if (hostreq.matches(hostcap)) {
+                        index = index.link(res, (XResource) hostcap.getResource());
+                    }
+                }
+            }
         }
-        if (capset.isEmpty() && (key.value == null || key.hasFuzzyOperator())) {
-            for (Entry<CacheKey, Set<Capability>> entry : capabilityCache.entrySet()) {
-                CacheKey auxkey = entry.getKey();
-                if (auxkey.namespace.equals(key.namespace)) {
-                    capset.addAll(entry.getValue());
+        for (XResource res : resources) {
+            for (Capability hostcap : res.getCapabilities(HostNamespace.HOST_NAMESPACE)) {
+                Object hostName = hostcap.getAttributes().get(HostNamespace.HOST_NAMESPACE);
+                for (XResource fragment : index.getFragments(hostName instanceof String ? (String) hostName : null)) {
+                    if (getHostRequirement(fragment).matches(hostcap)) {
+                        index = index.link(fragment, res);
+                    }
                 }
             }
         }
-        return Collections.unmodifiableSet(capset);
+        return index;
+    }
+
+    // Get the private working copy of an index bucket, which is published when the write operation completes
+    private static <K, V> Set<V> getWritableSet(Map<K, Set<V>> cache, Map<K, Set<V>> updates, K key) {
+        Set<V> result = updates.get(key);
+        if (result == null) {
+            Set<V> snapshot = cache.get(key);
+            result = snapshot != null ? new LinkedHashSet<V>(snapshot) : new LinkedHashSet<V>();
+            updates.put(key, result);
+        }
+        return result;
     }
 
-    private Set<XResource> getCachedResources(String type) {
-        Set<XResource> typeset = resourceTypeCache.get(type);
-        if (typeset == null) {
-            typeset = new LinkedHashSet<XResource>();
-            resourceTypeCache.put(type, typeset);
+    private static <K, V> Map<K, Set<V>> publishSnapshots(Map<K, Set<V>> cache, Map<K, Set<V>> updates) {
+        if (updates.isEmpty())
+            return cache;
+        Map<K, Set<V>> result = new HashMap<K, Set<V>>(cache);
+        for (Entry<K, Set<V>> entry : updates.entrySet()) {
+            Set<V> snapshot = entry.getValue();
+            if (snapshot.isEmpty()) {
+                result.remove(entry.getKey());
+            } else {
+                result.put(entry.getKey(), Collections.unmodifiableSet(snapshot));
+            }
         }
-        return typeset;
+        return Collections.unmodifiableMap(result);
     }
 
-    private static class CacheKey {
+    /**
+     * A slice of an install batch with the capabilities grouped by index bucket.
+     */
+    private static class PreparedResources {
 
-        private final String namespace;
-        private final String value;
-        private final String keyspec;
-        private final String operator;
+        private final List<XResource> resources;
+        private final Map<CacheKey, List<Capability>> capabilities = new LinkedHashMap<CacheKey, List<Capability>>();
+
+        PreparedResources(XResource[] batch, int from, int to) {
+            resources = Arrays.asList(batch).subList(from, to);
+            for (XResource res : resources) {
+                if (res == null)
+                    throw MESSAGES.illegalArgumentNull("resource");
+                if (res.getIdentityCapability() == null)
+                    throw MESSAGES.illegalStateNoIdentityCapability(res);
+                AbstractResource.assertAbstractResource(res);
 
-        static CacheKey create(Capability cap) {
-            String namespace = cap.getNamespace();
-            String nsvalue = (String) cap.getAttributes().get(namespace);
-            return new CacheKey(namespace, nsvalue, null);
+                for (Capability cap : res.getCapabilities(null)) {
+                    CacheKey cachekey = CacheKey.create(cap);
+                    List<Capability> caplist = capabilities.get(cachekey);
+                    if (caplist == null) {
+                        caplist = new ArrayList<Capability>();
+                        capabilities.put(cachekey, caplist);
+                    }
+                    caplist.add(cap);
+                }
+            }
         }
+    }
+
+    /**
+     * A read-only view of the effective wirings of the wired resources.
+     */
+    private class WiringView extends AbstractMap<Resource, Wiring> {
+
+        private final Set<Entry<Resource, Wiring>> entries = new AbstractSet<Entry<Resource, Wiring>>() {
+
+            @Override
+            public Iterator<Entry<Resource, Wiring>> iterator() {
+                final Iterator<XResource> itres = wiredResources.get().keys().iterator();
+                return new Iterator<Entry<Resource, Wiring>>() {
+                    Entry<Resource, Wiring> nextEntry;
+
+                    @Override
+                    public boolean hasNext() {
+                        while (nextEntry == null && itres.hasNext()) {
+                            XResource res = itres.next();
+                            Wiring wiring = res.getWiringSupport().getWiring(true);
+                            if (wiring != null) {
+                                nextEntry = new SimpleImmutableEntry<Resource, Wiring>(res, wiring);
+                            }
+                        }
+                        return nextEntry != null;
+                    }
 
-        static CacheKey create(Requirement req) {
-            String namespace = req.getNamespace();
-            StringBuffer opbuffer = new StringBuffer();
-            String nsvalue = AbstractRequirement.getNamespaceValue(req, opbuffer);
-            String operator = opbuffer.length() > 0 ? opbuffer.toString() : null;
-            return new CacheKey(namespace, nsvalue, operator);
+                    @Override
+                    public Entry<Resource, Wiring> next() {
+                        if (!hasNext())
+                            throw new NoSuchElementException();
+                        Entry<Resource, Wiring> result = nextEntry;
+                        nextEntry = null;
+                        return result;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return wiredResources.get().size();
+            }
+        };
+
+        @Override
+        public Wiring get(Object key) {
+            if (key instanceof XResource && wiredResources.get().containsKey(key)) {
+                return ((XResource) key).getWiringSupport().getWiring(true);
+            }
+            return null;
         }
 
-        private CacheKey(String namespace, String value, String operator) {
-            this.namespace = namespace;
-            this.value = value;
-            this.operator = operator;
-            this.keyspec = namespace + ":" + value;
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
         }
 
-        boolean hasFuzzyOperator() {
-            return operator != null && !operator.equals("=");
+        @Override
+        public boolean isEmpty() {
+            return wiredResources.get().isEmpty();
+        }
+
+        @Override
+        public Set<Entry<Resource, Wiring>> entrySet() {
+            return entries;
+        }
+    }
+
+    /**
+     * The environments that share their wired resources through {@link #clone()}.
+     *
+     * A wiring change of a tracked resource is passed to every environment of the group, which updates
+     * its wired resources if the resource is installed in it.
+     */
+    private static class WiringTracker {
+
+        private final List<WeakReference<AbstractEnvironment>> environments = new ArrayList<WeakReference<AbstractEnvironment>>();
+
+        synchronized void add(AbstractEnvironment env) {
+            removeCleared();
+            environments.add(new WeakReference<AbstractEnvironment>(env));
+        }
+
+        synchronized void wiringChanged(XResource res) {
+            for (WeakReference<AbstractEnvironment> ref : environments) {
+                AbstractEnvironment env = ref.get();
+                if (env != null) {
+                    env.updateWiredResource(res);
+                }
+            }
+        }
+
+        private void removeCleared() {
+            Iterator<WeakReference<AbstractEnvironment>> itref = environments.iterator();
+            while (itref.hasNext()) {
+                if (itref.next().get() == null) {
+                    itref.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Passes the wiring changes of a resource to the environments of a {@link WiringTracker}.
+     *
+     * The listener stays registered when the resource is uninstalled, a change is then ignored.
+     */
+    private static class TrackedResource implements AbstractWiringSupport.Listener {
+
+        private final WiringTracker tracker;
+        private final XResource resource;
+
+        TrackedResource(WiringTracker tracker, XResource resource) {
+            this.tracker = tracker;
+            this.resource = resource;
+        }
+
+        @Override
+        public void wiringChanged() {
+            tracker.wiringChanged(resource);
+        }
+
+        @Override
+        public int hashCode() {
+            return tracker.hashCode() * 31 + resource.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof TrackedResource))
+                return false;
+            TrackedResource other = (TrackedResource) obj;
+            return tracker == other.tracker && resource == other.resource;
+        }
+    }
+
+    /**
+     * The key of a cached {@link #findProviders(Requirement)} result.
+     *
+     * Requirements with the same namespace, filter and namespace attribute have the same providers.
+     * Bundle requirements are not cached because a resource cannot require itself.
+     */
+    private static class ProviderKey {
+
+        private final String namespace;
+        private final String filter;
+        private final Object value;
+
+        static ProviderKey create(XRequirement xreq) {
+            String namespace = xreq.getNamespace();
+            if (!(xreq instanceof AbstractRequirement) || BundleNamespace.BUNDLE_NAMESPACE.equals(namespace))
+                return null;
+            Filter filter = xreq.getFilter();
+            return new ProviderKey(namespace, filter != null ? filter.toString() : null, xreq.getAttribute(namespace));
+        }
+
+        private ProviderKey(String namespace, String filter, Object value) {
+            this.namespace = namespace;
+            this.filter = filter;
+            this.value = value;
         }
 
         @Override
         public int hashCode() {
-            return keyspec.hashCode();
+            int result = namespace.hashCode();
+            result = 31 * result + (filter != null ? filter.hashCode() : 0);
+            return 31 * result + (value != null ? value.hashCode() : 0);
         }
 
         @Override
         public boolean equals(Object obj) {
             if (this == obj)
                 return true;
-            if (!(obj instanceof CacheKey))
+            if (!(obj instanceof ProviderKey))
                 return false;
-            CacheKey other = (CacheKey) obj;
-            return keyspec.equals(other.keyspec);
+            ProviderKey other = (ProviderKey) obj;
+            return namespace.equals(other.namespace) && equals(filter, other.filter) && equals(value, other.value);
         }
 
-        @Override
-        public String toString() {
-            return "[" + keyspec + "]";
+        private static boolean equals(Object o1, Object o2) {
+            return o1 != null ? o1.equals(o2) : o2 == null;
+        }
+    }
+
+    /**
+     * The cached capabilities that match a requirement filter.
+     */
+    private static class ProviderEntry {
+
+        private final List<Capability> matches;
+        private final String namespace;
+        private final String value;
+        private final long epoch;
+
+        ProviderEntry(List<Capability> matches, String namespace, String value, long epoch) {
+            this.matches = Collections.unmodifiableList(matches);
+            this.namespace = namespace;
+            this.value = value;
+            this.epoch = epoch;
+        }
+    }
+
+    /**
+     * The capabilities of a namespace, sorted by namespace value.
+     *
+     * Exact lookups hit a single bucket, range and wildcard lookups only touch the matching sub map.
+     * Lookups without an exact namespace value use a configured attribute index if the filter has an
+     * equality condition on the indexed attribute.
+     *
+     * An index is immutable. An update returns a new index that shares the unchanged buckets, so a reader
+     * always sees the epochs and the buckets of the same update.
+     */
+    private static class NamespaceIndex {
+
+        private final String versionAttribute;
+        private final PersistentSortedMap<String, CapabilityBucket> values;
+        private final Map<String, AttributeIndex> attributeIndexes;
+        private final Set<Capability> unvalued;
+        // The epoch of the last update and of the last update that removed a bucket
+        private final long epoch;
+        private final long absentEpoch;
+
+        NamespaceIndex(String namespace) {
+            if (PackageNamespace.PACKAGE_NAMESPACE.equals(namespace)) {
+                versionAttribute = PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE;
+            } else if (BundleNamespace.BUNDLE_NAMESPACE.equals(namespace) || HostNamespace.HOST_NAMESPACE.equals(namespace)) {
+                versionAttribute = AbstractWiringNamespace.CAPABILITY_BUNDLE_VERSION_ATTRIBUTE;
+            } else {
+                versionAttribute = null;
+            }
+            values = PersistentSortedMap.empty();
+            attributeIndexes = Collections.emptyMap();
+            unvalued = Collections.emptySet();
+            epoch = 0;
+            absentEpoch = 0;
+        }
+
+        private NamespaceIndex(NamespaceIndex other, PersistentSortedMap<String, CapabilityBucket> values, Map<String, AttributeIndex> attributeIndexes,
+                Set<Capability> unvalued, long epoch, long absentEpoch) {
+            this.versionAttribute = other.versionAttribute;
+            this.values = values;
+            this.attributeIndexes = attributeIndexes;
+            this.unvalued = unvalued;
+            this.epoch = epoch;
+            this.absentEpoch = absentEpoch;
+        }
+
+        // Get the epoch of a namespace value or of the whole namespace for a null value
+        long getEpoch(String value) {
+            if (value == null)
+                return epoch;
+            CapabilityBucket bucket = values.get(value);
+            return bucket != null ? bucket.epoch : absentEpoch;
+        }
+
+        NamespaceIndex addAttributeIndex(String attribute) {
+            if (attributeIndexes.containsKey(attribute))
+                return this;
+
+            AttributeIndex attindex = new AttributeIndex(attribute).update(null, unvalued);
+            for (CapabilityBucket bucket : values.values()) {
+                attindex = attindex.update(null, bucket.capabilities);
+            }
+            Map<String, AttributeIndex> indexes = new HashMap<String, AttributeIndex>(attributeIndexes);
+            indexes.put(attribute, attindex);
+            return new NamespaceIndex(this, values, Collections.unmodifiableMap(indexes), unvalued, epoch, absentEpoch);
+        }
+
+        Set<Capability> get(String value) {
+            if (value == null)
+                return unvalued;
+            CapabilityBucket bucket = values.get(value);
+            return bucket != null ? bucket.capabilities : null;
+        }
+
+        // Replace the buckets of the given namespace values, only values with capabilities keep their own epoch
+        NamespaceIndex update(Map<String, Set<Capability>> buckets, long next) {
+            PersistentSortedMap<String, CapabilityBucket> resvalues = values;
+            Map<String, AttributeIndex> resindexes = new HashMap<String, AttributeIndex>(attributeIndexes);
+            Set<Capability> resunvalued = unvalued;
+            long resabsent = absentEpoch;
+            for (Entry<String, Set<Capability>> entry : buckets.entrySet()) {
+                String value = entry.getKey();
+                Set<Capability> capset = entry.getValue();
+                Set<Capability> previous = value != null ? getCapabilities(resvalues, value) : resunvalued;
+                for (Entry<String, AttributeIndex> attentry : resindexes.entrySet()) {
+                    attentry.setValue(attentry.getValue().update(previous, capset));
+                }
+                if (value == null) {
+                    resunvalued = capset.isEmpty() ? Collections.<Capability> emptySet() : Collections.unmodifiableSet(capset);
+                } else if (!capset.isEmpty()) {
+                    resvalues = resvalues.put(value, new CapabilityBucket(capset, versionAttribute, next));
+                } else {
+                    resvalues = resvalues.remove(value);
+                    resabsent = next;
+                }
+            }
+            Map<String, AttributeIndex> indexes = resindexes.isEmpty() ? attributeIndexes : Collections.unmodifiableMap(resindexes);
+            return new NamespaceIndex(this, resvalues, indexes, resunvalued, next, resabsent);
+        }
+
+        private static Set<Capability> getCapabilities(PersistentSortedMap<String, CapabilityBucket> values, String value) {
+            CapabilityBucket bucket = values.get(value);
+            return bucket != null ? bucket.capabilities : null;
+        }
+
+        Set<Capability> find(CacheKey key, VersionRange range, FilterMatcher matcher) {
+            if (!key.isExact() && matcher != null && !attributeIndexes.isEmpty()) {
+                Set<Capability> result = findByAttributes(matcher);
+                if (result != null) {
+                    return result;
+                }
+            }
+            if (key.getValue() == null || "~=".equals(key.getOperator())) {
+                Set<Capability> result = new LinkedHashSet<Capability>(unvalued);
+                return collect(result, values.values());
+            } else if (key.getWildcardPrefix() != null) {
+                String prefix = key.getWildcardPrefix();
+                return collect(new LinkedHashSet<Capability>(), values.values(prefix, true, prefix + Character.MAX_VALUE, true));
+            } else if (">=".equals(key.getOperator())) {
+                return collect(new LinkedHashSet<Capability>(), values.values(key.getValue(), true, null, false));
+            } else if ("<=".equals(key.getOperator())) {
+                return collect(new LinkedHashSet<Capability>(), values.values(null, false, key.getValue(), true));
+            }
+            CapabilityBucket bucket = values.get(key.getValue());
+            return bucket != null ? bucket.find(range) : Collections.<Capability> emptySet();
+        }
+
+        // Use the most selective attribute index or return null if there is none that applies
+        private Set<Capability> findByAttributes(FilterMatcher matcher) {
+            Set<Capability> result = null;
+            for (FilterMatcher.Compare conjunct : matcher.getEqualityConjuncts()) {
+                AttributeIndex attindex = attributeIndexes.get(conjunct.getAttribute());
+                if (attindex != null) {
+                    Set<Capability> capset = attindex.find(conjunct.getValue());
+                    if (result == null || capset.size() < result.size()) {
+                        result = capset;
+                    }
+                }
+            }
+            return result;
+        }
+
+        private Set<Capability> collect(Set<Capability> result, Iterable<CapabilityBucket> buckets) {
+            for (CapabilityBucket bucket : buckets) {
+                result.addAll(bucket.capabilities);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * The capabilities of a namespace by the string values of an attribute.
+     *
+     * Capabilities with attribute values of other types cannot be selected by string equality,
+     * they are always part of the result. An index is immutable, an update returns a new index.
+     */
+    private static class AttributeIndex {
+
+        private final String attribute;
+        private final PersistentMap<String, Set<Capability>> values;
+        private final Set<Capability> unindexed;
+
+        AttributeIndex(String attribute) {
+            this(attribute, PersistentMap.<String, Set<Capability>> empty(), Collections.<Capability> emptySet());
+        }
+
+        private AttributeIndex(String attribute, PersistentMap<String, Set<Capability>> values, Set<Capability> unindexed) {
+            this.attribute = attribute;
+            this.values = values;
+            this.unindexed = unindexed;
+        }
+
+        AttributeIndex update(Set<Capability> previous, Set<Capability> capset) {
+            AttributeIndex result = this;
+            if (previous != null) {
+                for (Capability cap : previous) {
+                    if (!capset.contains(cap)) {
+                        result = result.update(cap, false);
+                    }
+                }
+            }
+            for (Capability cap : capset) {
+                if (previous == null || !previous.contains(cap)) {
+                    result = result.update(cap, true);
+                }
+            }
+            return result;
+        }
+
+        Set<Capability> find(String value) {
+            Set<Capability> capset = values.get(value);
+            if (unindexed.isEmpty()) {
+                return capset != null ? capset : Collections.<Capability> emptySet();
+            }
+            Set<Capability> result = new LinkedHashSet<Capability>(unindexed);
+            if (capset != null) {
+                result.addAll(capset);
+            }
+            return result;
+        }
+
+        private AttributeIndex update(Capability cap, boolean add) {
+            Object attval = cap.getAttributes().get(attribute);
+            if (attval == null) {
+                return this;
+            }
+            List<String> keys = getIndexKeys(attval);
+            if (keys == null) {
+                return new AttributeIndex(attribute, values, copyOnWrite(unindexed, cap, add));
+            }
+            PersistentMap<String, Set<Capability>> result = values;
+            for (String key : keys) {
+                Set<Capability> capset = copyOnWrite(result.get(key), cap, add);
+                result = capset.isEmpty() ? result.remove(key) : result.put(key, capset);
+            }
+            return new AttributeIndex(attribute, result, unindexed);
+        }
+
+        private static Set<Capability> copyOnWrite(Set<Capability> snapshot, Capability cap, boolean add) {
+            Set<Capability> result = snapshot != null ? new LinkedHashSet<Capability>(snapshot) : new LinkedHashSet<Capability>();
+            if (add) {
+                result.add(cap);
+            } else {
+                result.remove(cap);
+            }
+            return Collections.unmodifiableSet(result);
+        }
+
+        // Get the string values of an attribute or null if the value is not a string or a collection of strings
+        private static List<String> getIndexKeys(Object attval) {
+            if (attval instanceof String) {
+                return Collections.singletonList((String) attval);
+            }
+            Collection<?> elements = null;
+            if (attval instanceof Collection) {
+                elements = (Collection<?>) attval;
+            } else if (attval instanceof String[]) {
+                elements = Arrays.asList((String[]) attval);
+            }
+            if (elements == null) {
+                return null;
+            }
+            List<String> result = new ArrayList<String>();
+            for (Object element : elements) {
+                if (!(element instanceof String)) {
+                    return null;
+                }
+                result.add((String) element);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * An immutable set of capabilities for a namespace value.
+     *
+     * For versioned namespaces the capabilities are also sorted by version, so that a version range
+     * selects a contiguous slice. The selected capabilities are returned in installation order.
+     */
+    private static class CapabilityBucket {
+
+        private final Set<Capability> capabilities;
+        private final Capability[] ordered;
+        private final Version[] versions;
+        private final int[] positions;
+        // The epoch of the update that published this bucket
+        private final long epoch;
+
+        CapabilityBucket(Set<Capability> capset, String versionAttribute, long epoch) {
+            this.epoch = epoch;
+            capabilities = Collections.unmodifiableSet(capset);
+            ordered = capset.toArray(new Capability[capset.size()]);
+            if (versionAttribute != null && ordered.length > 1) {
+                Integer[] sorted = new Integer[ordered.length];
+                final Version[] capversions = new Version[ordered.length];
+                for (int i = 0; i < ordered.length; i++) {
+                    sorted[i] = i;
+                    capversions[i] = AbstractCapability.getVersion(ordered[i], versionAttribute);
+                }
+                // The sort is stable, equal versions keep installation order
+                Arrays.sort(sorted, new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer o1, Integer o2) {
+                        return capversions[o1].compareTo(capversions[o2]);
+                    }
+                });
+                versions = new Version[ordered.length];
+                positions = new int[ordered.length];
+                for (int i = 0; i < ordered.length; i++) {
+                    positions[i] = sorted[i];
+                    versions[i] = capversions[sorted[i]];
+                }
+            } else {
+                versions = null;
+                positions = null;
+            }
+        }
+
+        Set<Capability> find(VersionRange range) {
+            if (range == null || versions == null)
+                return capabilities;
+
+            int from = indexOf(range.getLeft(), range.getLeftType() == VersionRange.LEFT_OPEN);
+            int to = range.getRight() != null ? indexOf(range.getRight(), range.getRightType() == VersionRange.RIGHT_CLOSED) : versions.length;
+            if (from == 0 && to == versions.length)
+                return capabilities;
+            if (from >= to)
+                return Collections.emptySet();
+
+            int[] selected = Arrays.copyOfRange(positions, from, to);
+            Arrays.sort(selected);
+            Set<Capability> result = new LinkedHashSet<Capability>();
+            for (int pos : selected) {
+                result.add(ordered[pos]);
+            }
+            return result;
+        }
+
+        // Get the index of the first version that is greater than (or equal to) the given version
+        private int indexOf(Version version, boolean exclusive) {
+            int low = 0;
+            int high = versions.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                int comp = versions[mid].compareTo(version);
+                if (comp < 0 || (comp == 0 && exclusive)) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
         }
     }
 }
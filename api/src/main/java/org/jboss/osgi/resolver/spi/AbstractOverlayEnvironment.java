@@ -0,0 +1,419 @@
+/*
+ * #%L
+ * JBossOSGi Resolver API
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.resolver.spi;
+
+import static org.jboss.osgi.resolver.ResolverLogger.LOGGER;
+import static org.jboss.osgi.resolver.ResolverMessages.MESSAGES;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+import org.jboss.osgi.resolver.XEnvironment;
+import org.jboss.osgi.resolver.XRequirement;
+import org.jboss.osgi.resolver.XResource;
+import org.jboss.osgi.resolver.XWiring;
+import org.jboss.osgi.resolver.internal.PersistentMap;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Resource;
+import org.osgi.resource.Wire;
+import org.osgi.resource.Wiring;
+
+/**
+ * An environment that adds the resources of a tenant to a shared base environment.
+ *
+ * Resources installed into the overlay are kept in the indexes of this environment, uninstalling a resource of
+ * the base hides it from the overlay. Lookups merge both layers without copying the base.
+ *
+ * The overlay does not modify the resources or wirings of the base. A resource of the base that is wired in the
+ * overlay gets a wiring that is held by the overlay. It extends the current wiring of the resource in the base
+ * and takes the wires of the overlay, which are not visible in the base or in other overlays. The wiring is
+ * dropped when the resource is uninstalled from the base.
+ *
+ * The base is queried without its resolver hooks, which are applied once to the merged result of the overlay.
+ *
+ * Resource identifiers are allocated by the base, so that they are unique across all overlays of the same base.
+ *
+ * @author agent@local
+ * @since 17-Oct-2026
+ */
+public class AbstractOverlayEnvironment extends AbstractEnvironment {
+
+    private final AbstractEnvironment base;
+    private final Map<Resource, Wiring> wiringView = new OverlayWiringView();
+    private volatile PersistentMap<XResource, Boolean> hiddenResources = PersistentMap.empty();
+    private volatile PersistentMap<XResource, XWiring> baseWirings = PersistentMap.empty();
+
+    public AbstractOverlayEnvironment(AbstractEnvironment base) {
+        if (base == null)
+            throw MESSAGES.illegalArgumentNull("base");
+        this.base = base;
+    }
+
+    private AbstractOverlayEnvironment(AbstractOverlayEnvironment env) {
+        super(env);
+        base = env.base;
+        hiddenResources = env.hiddenResources;
+        baseWirings = env.baseWirings;
+    }
+
+    public AbstractEnvironment getBaseEnvironment() {
+        return base;
+    }
+
+    @Override
+    public synchronized XEnvironment clone() {
+        return new AbstractOverlayEnvironment(this);
+    }
+
+    @Override
+    public Long nextResourceIdentifier(Long value, String symbolicName) {
+        Long result = base.nextResourceIdentifier(value, symbolicName);
+        return super.nextResourceIdentifier(result, symbolicName);
+    }
+
+    @Override
+    public void installResources(ExecutorService executor, XResource... resources) {
+        if (resources == null)
+            throw MESSAGES.illegalArgumentNull("resources");
+
+        List<XResource> local = new ArrayList<XResource>();
+        synchronized (this) {
+            for (XResource res : resources) {
+                if (isBaseResource(res)) {
+                    if (!hiddenResources.containsKey(res))
+                        throw MESSAGES.illegalStateResourceAlreadyInstalled(res);
+
+                    LOGGER.debugf("Unhide base resource: %s", res);
+                    hiddenResources = hiddenResources.remove(res);
+                } else {
+                    local.add(res);
+                }
+            }
+        }
+        super.installResources(executor, local.toArray(new XResource[local.size()]));
+    }
+
+    @Override
+    long[] reserveResourceIdentifiers(int count) {
+        return base.reserveResourceIdentifiers(count);
+    }
+
+    @Override
+    public long uninstallResources(Collection<? extends XResource> resources) {
+        if (resources == null)
+            throw MESSAGES.illegalArgumentNull("resources");
+
+        List<XResource> local = new ArrayList<XResource>();
+        synchronized (this) {
+            for (XResource res : resources) {
+                if (res != null && isBaseResource(res) && !isLocalResource(res)) {
+                    LOGGER.debugf("Hide base resource: %s", res);
+                    hiddenResources = hiddenResources.put(res, Boolean.TRUE);
+                    baseWirings = baseWirings.remove(res);
+                } else {
+                    local.add(res);
+                }
+            }
+            pruneBaseWirings();
+        }
+        return super.uninstallResources(local);
+    }
+
+    @Override
+    public synchronized Map<Resource, Wiring> updateWiring(Map<Resource, List<Wire>> wiremap) {
+        pruneBaseWirings();
+        return super.updateWiring(wiremap);
+    }
+
+    // Drop the wirings of resources that were uninstalled from the base
+    private void pruneBaseWirings() {
+        PersistentMap<XResource, XWiring> wirings = baseWirings;
+        for (Entry<XResource, XWiring> entry : wirings) {
+            if (!isBaseResource(entry.getKey())) {
+                wirings = wirings.remove(entry.getKey());
+            }
+        }
+        baseWirings = wirings;
+    }
+
+    @Override
+    public XResource getResourceById(long resId) {
+        XResource res = super.getResourceById(resId);
+        if (res == null) {
+            res = base.getResourceById(resId);
+            if (res != null && hiddenResources.containsKey(res)) {
+                res = null;
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public Iterator<XResource> getResources(final Collection<String> types) {
+        final PersistentMap<XResource, Boolean> hidden = hiddenResources;
+        final Iterator<XResource> itbase = base.getResources(types);
+        final Iterator<XResource> itlocal = super.getResources(types);
+        return new Iterator<XResource>() {
+            XResource nextResource;
+
+            @Override
+            public boolean hasNext() {
+                while (nextResource == null && itbase.hasNext()) {
+                    XResource res = itbase.next();
+                    if (!hidden.containsKey(res)) {
+                        nextResource = res;
+                    }
+                }
+                if (nextResource == null && itlocal.hasNext()) {
+                    nextResource = itlocal.next();
+                }
+                return nextResource != null;
+            }
+
+            @Override
+            public XResource next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                XResource result = nextResource;
+                nextResource = null;
+                return result;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Get a live, read-only view of the effective wirings of both layers.
+     */
+    @Override
+    public Map<Resource, Wiring> getWirings() {
+        return wiringView;
+    }
+
+    // The capabilities of the base are checked against the wirings of this overlay
+    @Override
+    Collection<Capability> findMatchingCapabilities(XRequirement xreq) {
+        List<Capability> result = new ArrayList<Capability>(base.findMatchingCapabilities(xreq));
+        removeHidden(result);
+        result.addAll(super.findMatchingCapabilities(xreq));
+        return result;
+    }
+
+    @Override
+    XWiring getWiring(XResource res) {
+        XWiring wiring = getOverlayWiring(res);
+        return wiring != null ? wiring : super.getWiring(res);
+    }
+
+    // Get the wiring that this overlay holds for an installed and effective resource of the base
+    private XWiring getOverlayWiring(Object res) {
+        XWiring wiring = baseWirings.get(res);
+        if (wiring == null)
+            return null;
+        XResource xres = (XResource) wiring.getResource();
+        return xres.getWiringSupport().isEffective() && isBaseResource(xres) ? wiring : null;
+    }
+
+    // A resource of the base gets a wiring of this overlay instead of having its wiring modified
+    @Override
+    XWiring getWritableWiring(XResource res) {
+        if (!isBaseResource(res) || isLocalResource(res))
+            return super.getWritableWiring(res);
+
+        XWiring wiring = baseWirings.get(res);
+        if (wiring == null) {
+            wiring = createWiring(res, true);
+            baseWirings = baseWirings.put(res, wiring);
+        }
+        return wiring;
+    }
+
+    @Override
+    public List<XResource> getAttachableFragments(Capability hostcap) {
+        List<XResource> result = base.getAttachableFragments(hostcap);
+        PersistentMap<XResource, Boolean> hidden = hiddenResources;
+        if (!hidden.isEmpty()) {
+            Iterator<XResource> itres = result.iterator();
+            while (itres.hasNext()) {
+                if (hidden.containsKey(itres.next())) {
+                    itres.remove();
+                }
+            }
+        }
+        result.addAll(super.getAttachableFragments(hostcap));
+        return result;
+    }
+
+    // The fragment index of this overlay does not link fragments to the hosts of the base
+    @Override
+    boolean hasUnresolvedHost(XResource fragment, XRequirement hostreq) {
+        if (super.hasUnresolvedHost(fragment, hostreq))
+            return true;
+        PersistentMap<XResource, Boolean> hidden = hiddenResources;
+        for (Capability hostcap : base.findMatchingCapabilities(hostreq)) {
+            XResource host = (XResource) hostcap.getResource();
+            if (!hidden.containsKey(host) && getWiring(host) == null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void removeHidden(List<Capability> caps) {
+        PersistentMap<XResource, Boolean> hidden = hiddenResources;
+        if (!hidden.isEmpty()) {
+            Iterator<Capability> itcap = caps.iterator();
+            while (itcap.hasNext()) {
+                if (hidden.containsKey(itcap.next().getResource())) {
+                    itcap.remove();
+                }
+            }
+        }
+    }
+
+    private boolean isBaseResource(XResource res) {
+        Long index = res.getAttachment(XResource.RESOURCE_IDENTIFIER_KEY);
+        return index != null && base.getResourceById(index) == res;
+    }
+
+    private boolean isLocalResource(XResource res) {
+        Long index = res.getAttachment(XResource.RESOURCE_IDENTIFIER_KEY);
+        return index != null && super.getResourceById(index) == res;
+    }
+
+    /**
+     * A read-only view of the wirings of this overlay followed by the visible wirings of the base.
+     *
+     * The wirings that this overlay holds for resources of the base take precedence over their wirings in the base.
+     */
+    private class OverlayWiringView extends AbstractMap<Resource, Wiring> {
+
+        private final Set<Entry<Resource, Wiring>> entries = new AbstractSet<Entry<Resource, Wiring>>() {
+
+            @Override
+            public Iterator<Entry<Resource, Wiring>> iterator() {
+                final Map<Resource, Wiring> local = AbstractOverlayEnvironment.super.getWirings();
+                final PersistentMap<XResource, Boolean> hidden = hiddenResources;
+                final PersistentMap<XResource, XWiring> wirings = baseWirings;
+                final Iterator<Entry<Resource, Wiring>> itlocal = local.entrySet().iterator();
+                final Iterator<Entry<XResource, XWiring>> itwirings = wirings.iterator();
+                final Iterator<Entry<Resource, Wiring>> itbase = base.getWirings().entrySet().iterator();
+                return new Iterator<Entry<Resource, Wiring>>() {
+                    Entry<Resource, Wiring> nextEntry;
+
+                    @Override
+                    public boolean hasNext() {
+                        if (nextEntry == null && itlocal.hasNext()) {
+                            nextEntry = itlocal.next();
+                        }
+                        while (nextEntry == null && itwirings.hasNext()) {
+                            XResource res = itwirings.next().getKey();
+                            XWiring wiring = getOverlayWiring(res);
+                            if (wiring != null) {
+                                nextEntry = new SimpleImmutableEntry<Resource, Wiring>(res, wiring);
+                            }
+                        }
+                        while (nextEntry == null && itbase.hasNext()) {
+                            Entry<Resource, Wiring> entry = itbase.next();
+                            Resource res = entry.getKey();
+                            if (!hidden.containsKey(res) && !local.containsKey(res) && !wirings.containsKey(res)) {
+                                nextEntry = entry;
+                            }
+                        }
+                        return nextEntry != null;
+                    }
+
+                    @Override
+                    public Entry<Resource, Wiring> next() {
+                        if (!hasNext())
+                            throw new NoSuchElementException();
+                        Entry<Resource, Wiring> result = nextEntry;
+                        nextEntry = null;
+                        return result;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            // Correct the sizes of both layers by the resources of the base that this overlay hides or wires
+            @Override
+            public int size() {
+                Map<Resource, Wiring> basewirings = base.getWirings();
+                int size = AbstractOverlayEnvironment.super.getWirings().size() + basewirings.size();
+                for (Entry<XResource, Boolean> entry : hiddenResources) {
+                    if (basewirings.containsKey(entry.getKey())) {
+                        size--;
+                    }
+                }
+                for (Entry<XResource, XWiring> entry : baseWirings) {
+                    XResource res = entry.getKey();
+                    if (getOverlayWiring(res) != null && !basewirings.containsKey(res)) {
+                        size++;
+                    }
+                }
+                return size;
+            }
+        };
+
+        @Override
+        public Wiring get(Object key) {
+            Wiring wiring = AbstractOverlayEnvironment.super.getWirings().get(key);
+            if (wiring == null && !hiddenResources.containsKey(key)) {
+                wiring = getOverlayWiring(key);
+                if (wiring == null) {
+                    wiring = base.getWirings().get(key);
+                }
+            }
+            return wiring;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return !entries.iterator().hasNext();
+        }
+
+        @Override
+        public Set<Entry<Resource, Wiring>> entrySet() {
+            return entries;
+        }
+    }
+}
@@ -30,13 +30,12 @@ import static org.osgi.resource.Namespace.REQUIREMENT_RESOLUTION_DIRECTIVE;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
-import org.jboss.osgi.resolver.XAttributeSupport;
-import org.jboss.osgi.resolver.XCapability;
 import org.jboss.osgi.resolver.XCapabilityRequirement;
-import org.jboss.osgi.resolver.XDirectiveSupport;
 import org.jboss.osgi.resolver.XHostRequirement;
 import org.jboss.osgi.resolver.XIdentityCapability;
 import org.jboss.osgi.resolver.XPackageRequirement;
@@ -63,11 +62,16 @@ public class AbstractRequirement extends AbstractElement implements XHostRequire
 
     private final XResource resource;
     private final String namespace;
-    private XAttributeSupport attributes;
-    private XDirectiveSupport directives;
+    private AttributeSupporter attributes;
+    private DirectiveSupporter directives;
     private String canonicalName;
     private boolean optional;
     private Filter filter;
+    private FilterMatcher matcher;
+    private Set<String> filterAttributes;
+    private VersionRange versionRange;
+    private String namespaceValue;
+    private CacheKey cacheKey;
     private boolean valid;
 
     public AbstractRequirement(XResource resource, String namespace, Map<String, Object> atts, Map<String, String> dirs) {
@@ -115,6 +119,8 @@ public class AbstractRequirement extends AbstractElement implements XHostRequire
             // There are instead used to form a generated filter directive which will be visible in getDirectives.
             if (namespace.startsWith("osgi.wiring.")) {
                 if (!atts.isEmpty()) {
+                    // The version range attribute is folded into the generated filter directive
+                    versionRange = atts.containsKey(namespace) ? getVersionRangeAttribute() : null;
                     generateFilterDirective(namespace, atts, dirs);
                 }
                 if (!dirs.containsKey(Constants.FILTER_DIRECTIVE))
@@ -122,6 +128,11 @@ public class AbstractRequirement extends AbstractElement implements XHostRequire
             }
 
             filter = getFilterFromDirective(this);
+            matcher = filter != null ? FilterMatcher.compile(filter) : null;
+            filterAttributes = getFilterAttributes(filter);
+            StringBuffer opbuffer = new StringBuffer();
+            namespaceValue = InternPool.getPool(getResource()).intern(getValueFromFilter(filter, namespace, opbuffer));
+            cacheKey = new CacheKey(namespace, namespaceValue, opbuffer.length() > 0 ? opbuffer.toString() : null);
             String resdir = getDirective(AbstractWiringNamespace.REQUIREMENT_RESOLUTION_DIRECTIVE);
             optional = AbstractWiringNamespace.RESOLUTION_OPTIONAL.equals(resdir);
             canonicalName = toString();
@@ -129,6 +140,14 @@ public class AbstractRequirement extends AbstractElement implements XHostRequire
         }
     }
 
+    CacheKey getCacheKey() {
+        return cacheKey;
+    }
+
+    FilterMatcher getFilterMatcher() {
+        return matcher;
+    }
+
     public static Filter getFilterFromDirective(Requirement req) {
         String filterdir = req.getDirectives().get(AbstractWiringNamespace.REQUIREMENT_FILTER_DIRECTIVE);
         if (filterdir != null) {
@@ -174,7 +193,7 @@ public class AbstractRequirement extends AbstractElement implements XHostRequire
 
     @Override
     public Map<String, String> getDirectives() {
-        return isMutable() ? directives.getDirectives() : Collections.unmodifiableMap(directives.getDirectives());
+        return isMutable() ? directives.getDirectives() : directives.getImmutableDirectives();
     }
 
     @Override
@@ -184,7 +203,7 @@ public class AbstractRequirement extends AbstractElement implements XHostRequire
 
     @Override
     public Map<String, Object> getAttributes() {
-        return isMutable() ? attributes.getAttributes() : Collections.unmodifiableMap(attributes.getAttributes());
+        return isMutable() ? attributes.getAttributes() : attributes.getImmutableAttributes();
     }
 
     @Override
@@ -196,6 +215,11 @@ public class AbstractRequirement extends AbstractElement implements XHostRequire
         return resource.isMutable();
     }
 
+    void freeze() {
+        attributes.freeze();
+        directives.freeze();
+    }
+
     private void assertImmutable() {
         if (isMutable() == true)
             throw MESSAGES.illegalStateInvalidAccessToMutableResource();
@@ -257,26 +281,52 @@ public class AbstractRequirement extends AbstractElement implements XHostRequire
 
     private boolean matchesMandatoryDirective(Capability cap) {
         // match mandatory attributes on the capability
-        String dirstr = ((XCapability) cap).getDirective(Constants.MANDATORY_DIRECTIVE);
-        if (dirstr != null) {
-            for (String attname : dirstr.split("[,\\s]")) {
-                String attval = getValueFromFilter(filter, attname, null);
-                if (attval == null) {
-                    return false;
+        Set<String> mandatory;
+        if (cap instanceof AbstractCapability) {
+            mandatory = ((AbstractCapability) cap).getMandatoryAttributes();
+        } else {
+            mandatory = AbstractCapability.parseMandatory((XResource) cap.getResource(), cap.getDirectives().get(Constants.MANDATORY_DIRECTIVE));
+        }
+        return mandatory.isEmpty() || filterAttributes.containsAll(mandatory);
+    }
+
+    /**
+     * Get the names of the attributes that are referenced by the given filter.
+     */
+    static Set<String> getFilterAttributes(Filter filter) {
+        if (filter == null)
+            return Collections.emptySet();
+        Set<String> result = new HashSet<String>();
+        String filterstr = filter.toString();
+        int length = filterstr.length();
+        for (int i = 0; i < length; i++) {
+            char ch = filterstr.charAt(i);
+            if (ch == '\\') {
+                i++;
+            } else if (ch == '(' && i + 1 < length && "&|!(".indexOf(filterstr.charAt(i + 1)) < 0) {
+                int start = i + 1;
+                int end = start;
+                while (end < length && "~<>=()".indexOf(filterstr.charAt(end)) < 0) {
+                    end++;
+                }
+                String attname = filterstr.substring(start, end).trim();
+                if (attname.length() > 0) {
+                    result.add(attname);
                 }
+                i = end - 1;
             }
         }
-        return true;
+        return result;
     }
 
     static VersionRange getVersionRange(XRequirement req, String attr) {
         Object value = req.getAttribute(attr);
-        return (value instanceof String) ? new VersionRange((String) value) : (VersionRange) value;
+        return (value instanceof String) ? InternPool.getPool(req.getResource()).getVersionRange((String) value) : (VersionRange) value;
     }
 
     private boolean matchFilter(Capability cap) {
         Map<String, Object> capatts = cap.getAttributes();
-        return filter != null ? filter.matches(capatts) : true;
+        return matcher != null ? matcher.matches(capatts) : true;
     }
 
     @Override
@@ -288,7 +338,7 @@ public class AbstractRequirement extends AbstractElement implements XHostRequire
     public String getSymbolicName() {
         String result = null;
         if (HOST_NAMESPACE.equals(getNamespace())) {
-            result = getNamespaceValue(this);
+            result = valid ? namespaceValue : getNamespaceValue(this);
         }
         return result;
     }
@@ -297,13 +347,17 @@ public class AbstractRequirement extends AbstractElement implements XHostRequire
     public String getPackageName() {
         String result = null;
         if (PACKAGE_NAMESPACE.equals(getNamespace())) {
-            result = getNamespaceValue(this);
+            result = valid ? namespaceValue : getNamespaceValue(this);
         }
         return result;
     }
 
     @Override
     public VersionRange getVersionRange() {
+        return valid ? versionRange : getVersionRangeAttribute();
+    }
+
+    private VersionRange getVersionRangeAttribute() {
         VersionRange result = null;
         if (HOST_NAMESPACE.equals(getNamespace()) || BUNDLE_NAMESPACE.equals(getNamespace())) {
             result = AbstractRequirement.getVersionRange(this, CAPABILITY_BUNDLE_VERSION_ATTRIBUTE);
@@ -334,7 +388,7 @@ public class AbstractRequirement extends AbstractElement implements XHostRequire
             }
             try {
                 Filter filter = FrameworkUtil.createFilter(filterSpec.toString());
-                dirs.put(Constants.FILTER_DIRECTIVE, filter.toString());
+                dirs.put(Constants.FILTER_DIRECTIVE, InternPool.getPool(getResource()).intern(filter.toString()));
             } catch (InvalidSyntaxException ex) {
                 throw new IllegalArgumentException(ex);
             }
@@ -354,7 +408,7 @@ public class AbstractRequirement extends AbstractElement implements XHostRequire
             VersionRange versionRange = (VersionRange) versionAtt;
             parts.add(versionRange.toFilterString(attrname));
         } else if (versionAtt instanceof String) {
-            VersionRange versionRange = new VersionRange((String) versionAtt);
+            VersionRange versionRange = InternPool.getPool(getResource()).getVersionRange((String) versionAtt);
             parts.add(versionRange.toFilterString(attrname));
         }
     }
@@ -20,6 +20,7 @@
 package org.jboss.osgi.resolver.spi;
 
 import static org.jboss.osgi.resolver.ResolverLogger.LOGGER;
+import static org.jboss.osgi.resolver.ResolverMessages.MESSAGES;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
@@ -55,12 +56,37 @@ import org.osgi.service.resolver.Resolver;
  */
 public class AbstractResolver implements XResolver {
 
+    /**
+     * The system property that selects the resolver engine by its class name or simple class name.
+     * If it is not set, the first registered {@link Resolver} service is used.
+     */
+    public static final String RESOLVER_ENGINE = "org.jboss.osgi.resolver.engine";
+
     private final Resolver delegate;
 
     public AbstractResolver() {
+        this(System.getProperty(RESOLVER_ENGINE));
+    }
+
+    /**
+     * Create a resolver that delegates to the given engine.
+     *
+     * @param engine the class name or simple class name of a registered {@link Resolver} service, or null for the first one
+     */
+    public AbstractResolver(String engine) {
         ClassLoader classLoader = AbstractResolver.class.getClassLoader();
         ServiceLoader<Resolver> loader = ServiceLoader.load(Resolver.class, classLoader);
-        delegate = loader.iterator().next();
+        Resolver result = null;
+        for (Resolver aux : loader) {
+            Class<?> auxClass = aux.getClass();
+            if (engine == null || engine.equals(auxClass.getName()) || engine.equals(auxClass.getSimpleName())) {
+                result = aux;
+                break;
+            }
+        }
+        if (result == null)
+            throw MESSAGES.illegalStateCannotFindResolverEngine(engine);
+        delegate = result;
     }
 
     @Override
@@ -115,15 +141,26 @@ public class AbstractResolver implements XResolver {
             }
         }
         HashSet<Resource> fragments = new HashSet<Resource>();
-        Iterator<XResource> itres = env.getResources(Collections.singleton(IdentityNamespace.TYPE_FRAGMENT));
-        while (itres.hasNext()) {
-            XBundleRevision brev = (XBundleRevision) itres.next();
-            XBundle bundle = brev.getBundle();
-            if (bundle != null && bundle.getState() != Bundle.UNINSTALLED) {
-                XRequirement xreq = (XRequirement) brev.getRequirements(HostNamespace.HOST_NAMESPACE).get(0);
-                for (Capability cap : hostcaps) {
-                    if (xreq.matches(cap) && !combined.contains(brev)) {
-                        fragments.add(brev);
+        if (env instanceof AbstractEnvironment) {
+            // Only look at the fragments that are indexed for the given hosts
+            AbstractEnvironment absenv = (AbstractEnvironment) env;
+            for (Capability cap : hostcaps) {
+                for (XResource res : absenv.getAttachableFragments(cap)) {
+                    if (res instanceof XBundleRevision && isInstalled((XBundleRevision) res) && !combined.contains(res)) {
+                        fragments.add(res);
+                    }
+                }
+            }
+        } else {
+            Iterator<XResource> itres = env.getResources(Collections.singleton(IdentityNamespace.TYPE_FRAGMENT));
+            while (itres.hasNext()) {
+                XBundleRevision brev = (XBundleRevision) itres.next();
+                if (isInstalled(brev)) {
+                    XRequirement xreq = (XRequirement) brev.getRequirements(HostNamespace.HOST_NAMESPACE).get(0);
+                    for (Capability cap : hostcaps) {
+                        if (xreq.matches(cap) && !combined.contains(brev)) {
+                            fragments.add(brev);
+                        }
                     }
                 }
             }
@@ -153,6 +190,11 @@ public class AbstractResolver implements XResolver {
         }
     }
 
+    private boolean isInstalled(XBundleRevision brev) {
+        XBundle bundle = brev.getBundle();
+        return bundle != null && bundle.getState() != Bundle.UNINSTALLED;
+    }
+
     private HashSet<Resource> getCombinedResources(Collection<? extends Resource> manres, Collection<Resource> optres) {
         HashSet<Resource> combined = new HashSet<Resource>(manres);
         combined.addAll(optres);
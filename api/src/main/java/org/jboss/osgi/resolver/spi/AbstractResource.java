@@ -30,13 +30,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-import org.jboss.osgi.resolver.XAttributeSupport;
 import org.jboss.osgi.resolver.XCapability;
 import org.jboss.osgi.resolver.XIdentityCapability;
 import org.jboss.osgi.resolver.XRequirement;
 import org.jboss.osgi.resolver.XResource;
 import org.jboss.osgi.resolver.XWiring;
 import org.jboss.osgi.resolver.XWiringSupport;
+import org.jboss.osgi.spi.AttachmentKey;
 import org.osgi.framework.namespace.IdentityNamespace;
 import org.osgi.resource.Capability;
 import org.osgi.resource.Requirement;
@@ -53,11 +53,15 @@ public class AbstractResource extends AbstractElement implements XResource {
 
     private final Map<String, List<Capability>> capabilities = new HashMap<String, List<Capability>>();
     private final Map<String, List<Requirement>> requirements = new HashMap<String, List<Requirement>>();
-    private final XAttributeSupport attributes = new AttributeSupporter(null);
+    private final AttributeSupporter attributes = new AttributeSupporter(null);
     private final AtomicBoolean mutable = new AtomicBoolean(true);
     private final XWiringSupport wiringSupport;
     private XIdentityCapability identityCapability;
     private State state = State.UNINSTALLED;
+    private volatile long resourceIndex = -1;
+    private volatile String type;
+    private volatile boolean fragment;
+    private volatile InternPool internPool = InternPool.DEFAULT;
 
     static AbstractResource assertAbstractResource(XResource resource) {
         assert resource != null : "Null resource";
@@ -73,6 +77,29 @@ public class AbstractResource extends AbstractElement implements XResource {
         return new AbstractWiringSupport();
     }
 
+    @Override
+    public <T> T putAttachment(AttachmentKey<T> key, T value) {
+        T result = super.putAttachment(key, value);
+        if (key == RESOURCE_IDENTIFIER_KEY) {
+            resourceIndex = value != null ? (Long) value : -1;
+        }
+        return result;
+    }
+
+    @Override
+    public <T> T removeAttachment(AttachmentKey<T> key) {
+        T result = super.removeAttachment(key);
+        if (key == RESOURCE_IDENTIFIER_KEY) {
+            resourceIndex = -1;
+        }
+        return result;
+    }
+
+    // Get the value of the {@link XResource#RESOURCE_IDENTIFIER_KEY} attachment without a lookup or -1
+    long getResourceIndex() {
+        return resourceIndex;
+    }
+
     protected void addCapability(Capability cap) {
         ensureMutable();
         String namespace = cap.getNamespace();
@@ -92,8 +119,7 @@ public class AbstractResource extends AbstractElement implements XResource {
 
     @Override
     public Map<String, Object> getAttributes() {
-        Map<String, Object> atts = attributes.getAttributes();
-        return isMutable() ? atts : Collections.unmodifiableMap(atts);
+        return isMutable() ? attributes.getAttributes() : attributes.getImmutableAttributes();
     }
 
     @Override
@@ -104,6 +130,29 @@ public class AbstractResource extends AbstractElement implements XResource {
     @Override
     public void setMutable(boolean flag) {
         mutable.set(flag);
+        if (flag == false) {
+            freeze();
+        } else {
+            type = null;
+        }
+    }
+
+    // Swap the attribute and directive maps for compact immutable copies and cache the resource type
+    private void freeze() {
+        String typeval = getIdentityType();
+        fragment = TYPE_FRAGMENT.equals(typeval);
+        type = typeval;
+        attributes.freeze();
+        for (Capability cap : getCaplist(null)) {
+            if (cap instanceof AbstractCapability) {
+                ((AbstractCapability) cap).freeze();
+            }
+        }
+        for (Requirement req : getReqlist(null)) {
+            if (req instanceof AbstractRequirement) {
+                ((AbstractRequirement) req).freeze();
+            }
+        }
     }
 
     @Override
@@ -120,6 +169,37 @@ public class AbstractResource extends AbstractElement implements XResource {
         return mutable.get();
     }
 
+    // The pool that the values of this resource are shared through
+    InternPool getInternPool() {
+        return internPool;
+    }
+
+    void setInternPool(InternPool internPool) {
+        this.internPool = internPool;
+    }
+
+    /**
+     * Get the type of this resource from its identity capability
+     *
+     * @return The type attribute of the identity capability, or {@link #TYPE_UNKNOWN} if there is none
+     */
+    public String getType() {
+        String result = type;
+        return result != null ? result : getIdentityType();
+    }
+
+    /**
+     * True if the type of this resource is {@link #TYPE_FRAGMENT}
+     */
+    public boolean isFragment() {
+        return type != null ? fragment : TYPE_FRAGMENT.equals(getIdentityType());
+    }
+
+    private String getIdentityType() {
+        XIdentityCapability icap = identityCapability;
+        return icap != null ? icap.getType() : TYPE_UNKNOWN;
+    }
+
     @Override
     public boolean isAbstract() {
         return identityCapability != null ? TYPE_ABSTRACT.equals(identityCapability.getType()) : true;
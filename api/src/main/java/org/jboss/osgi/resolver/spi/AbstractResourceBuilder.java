@@ -66,12 +66,22 @@ public class AbstractResourceBuilder<T extends XResource> implements XResourceBu
 
     private final XResourceBuilderFactory<T> factory;
     private final T resource;
+    private InternPool internPool;
 
     public AbstractResourceBuilder(XResourceBuilderFactory<T> factory) {
         if (factory == null)
             throw MESSAGES.illegalArgumentNull("factory");
         this.factory = factory;
         this.resource = factory.createResource();
+        this.internPool = InternPool.getPool(resource);
+    }
+
+    // Share the values of the resource through the given pool
+    void setInternPool(InternPool internPool) {
+        this.internPool = internPool;
+        if (resource instanceof AbstractResource) {
+            ((AbstractResource) resource).setInternPool(internPool);
+        }
     }
 
     @Override
@@ -85,7 +95,7 @@ public class AbstractResourceBuilder<T extends XResource> implements XResourceBu
     public XIdentityCapability addIdentityCapability(String symbolicName, Version version) {
         assertResourceCreated();
         XIdentityCapability icap = (XIdentityCapability) addCapability(IdentityNamespace.IDENTITY_NAMESPACE, symbolicName);
-        icap.getAttributes().put(IdentityNamespace.CAPABILITY_VERSION_ATTRIBUTE, version);
+        icap.getAttributes().put(IdentityNamespace.CAPABILITY_VERSION_ATTRIBUTE, internPool.intern(version));
         return icap;
     }
 
@@ -130,7 +140,7 @@ public class AbstractResourceBuilder<T extends XResource> implements XResourceBu
     @Override
     public XCapability addCapability(String namespace, Map<String, Object> atts, Map<String, String> dirs) {
         assertResourceCreated();
-        XCapability cap = factory.createCapability(resource, namespace, mutableAttributes(atts), mutableDirectives(dirs));
+        XCapability cap = factory.createCapability(resource, internPool.intern(namespace), mutableAttributes(atts), mutableDirectives(dirs));
         addCapability(cap);
         return cap;
     }
@@ -143,7 +153,7 @@ public class AbstractResourceBuilder<T extends XResource> implements XResourceBu
     @Override
     public XRequirement addRequirement(String namespace, Map<String, Object> atts, Map<String, String> dirs) {
         assertResourceCreated();
-        XRequirement req = factory.createRequirement(resource, namespace, mutableAttributes(atts), mutableDirectives(dirs));
+        XRequirement req = factory.createRequirement(resource, internPool.intern(namespace), mutableAttributes(atts), mutableDirectives(dirs));
         addRequirement(req);
         return req;
     }
@@ -172,7 +182,7 @@ public class AbstractResourceBuilder<T extends XResource> implements XResourceBu
         assertResourceCreated();
         try {
             String symbolicName = metadata.getBundleSymbolicName();
-            Version bundleVersion = metadata.getBundleVersion();
+            Version bundleVersion = internPool.intern(metadata.getBundleVersion());
             ParameterizedAttribute fragmentHost = metadata.getFragmentHost();
             ParameterizedAttribute idparams = metadata.getBundleParameters();
             Map<String, Object> idatts = getAttributes(idparams);
@@ -251,7 +261,7 @@ public class AbstractResourceBuilder<T extends XResource> implements XResourceBu
                         Object vspec = capatts.get(Constants.VERSION_ATTRIBUTE);
                         if (vspec != null) {
                             try {
-                                Version version = Version.parseVersion(vspec.toString());
+                                Version version = internPool.getVersion(vspec.toString());
                                 capatts.put(Constants.PACKAGE_SPECIFICATION_VERSION, version);
                             } catch (RuntimeException ex) {
                                 // ignore
@@ -393,7 +403,7 @@ public class AbstractResourceBuilder<T extends XResource> implements XResourceBu
         if (patts != null) {
             for (String key : patts.getAttributes().keySet()) {
                 Parameter param = patts.getAttribute(key);
-                atts.put(key, param.getValue());
+                atts.put(internPool.intern(key), internPool.internValue(param.getValue()));
             }
         }
         return atts;
@@ -404,18 +414,30 @@ public class AbstractResourceBuilder<T extends XResource> implements XResourceBu
         if (patts != null) {
             for (String key : patts.getDirectives().keySet()) {
                 String value = patts.getDirectiveValue(key, String.class);
-                dirs.put(key, value);
+                dirs.put(internPool.intern(key), internPool.intern(value));
             }
         }
         return dirs;
     }
 
     private Map<String, Object> mutableAttributes(Map<String, Object> atts) {
-        return new LinkedHashMap<String, Object>(atts != null ? atts : new LinkedHashMap<String, Object>());
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        if (atts != null) {
+            for (Map.Entry<String, Object> entry : atts.entrySet()) {
+                result.put(internPool.intern(entry.getKey()), internPool.internValue(entry.getValue()));
+            }
+        }
+        return result;
     }
 
     private Map<String, String> mutableDirectives(Map<String, String> dirs) {
-        return new LinkedHashMap<String, String>(dirs != null ? dirs : new LinkedHashMap<String, String>());
+        Map<String, String> result = new LinkedHashMap<String, String>();
+        if (dirs != null) {
+            for (Map.Entry<String, String> entry : dirs.entrySet()) {
+                result.put(internPool.intern(entry.getKey()), internPool.intern(entry.getValue()));
+            }
+        }
+        return result;
     }
 
     private void assertResourceCreated() {
@@ -28,13 +28,17 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.jboss.osgi.resolver.XCapability;
 import org.jboss.osgi.resolver.XPackageRequirement;
+import org.jboss.osgi.resolver.XRequirement;
 import org.jboss.osgi.resolver.XResource;
 import org.jboss.osgi.resolver.XWire;
 import org.jboss.osgi.resolver.XWiring;
 import org.osgi.framework.namespace.HostNamespace;
+import org.osgi.framework.namespace.PackageNamespace;
 import org.osgi.resource.Capability;
 import org.osgi.resource.Namespace;
 import org.osgi.resource.Requirement;
@@ -53,11 +57,11 @@ public class AbstractWiring implements XWiring {
     private final XResource resource;
     private final List<Wire> required = new ArrayList<Wire>();
     private final Map<String, List<Wire>> provided = new HashMap<String, List<Wire>>();
+    private final Set<String> substituted = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final boolean extendsCurrent;
 
     public AbstractWiring(XResource resource, List<Wire> reqwires, List<Wire> provwires) {
-        if (resource == null)
-            throw MESSAGES.illegalArgumentNull("resource");
-        this.resource = resource;
+        this(resource, false);
         if (reqwires != null) {
             for (Wire wire : reqwires) {
                 addRequiredWire(wire);
@@ -70,6 +74,24 @@ public class AbstractWiring implements XWiring {
         }
     }
 
+    /**
+     * Create a wiring that optionally extends the current wiring of the resource.
+     *
+     * The wires of the current effective wiring at the time of a lookup are included in the wires of this wiring.
+     * Wires that are added to this wiring are not added to the current wiring.
+     */
+    AbstractWiring(XResource resource, boolean extendsCurrent) {
+        if (resource == null)
+            throw MESSAGES.illegalArgumentNull("resource");
+        this.resource = resource;
+        this.extendsCurrent = extendsCurrent;
+    }
+
+    // Get the wiring that this wiring extends or null
+    private XWiring getParent() {
+        return extendsCurrent ? resource.getWiringSupport().getWiring(true) : null;
+    }
+
     @Override
     public XResource getResource() {
         return resource;
@@ -86,6 +108,41 @@ public class AbstractWiring implements XWiring {
             ((XWire) wire).setRequirerWiring(this);
         }
         required.add(wire);
+
+        // Track the imported package names
+        Requirement req = wire.getRequirement();
+        if (req instanceof XRequirement && PackageNamespace.PACKAGE_NAMESPACE.equals(req.getNamespace())) {
+            XPackageRequirement preq = ((XRequirement) req).adapt(XPackageRequirement.class);
+            if (preq != null) {
+                substituted.add(preq.getPackageName());
+            }
+        }
+    }
+
+    /**
+     * True if this wiring imports the given package. An export of the same package is substituted by the import.
+     */
+    public boolean isSubstitutedPackage(String packageName) {
+        if (substituted.contains(packageName))
+            return true;
+        XWiring parent = getParent();
+        return parent != null && isSubstitutedPackage(parent, packageName);
+    }
+
+    /**
+     * True if the given wiring imports the given package.
+     */
+    static boolean isSubstitutedPackage(Wiring wiring, String packageName) {
+        if (wiring instanceof AbstractWiring)
+            return ((AbstractWiring) wiring).isSubstitutedPackage(packageName);
+
+        for (Wire wire : wiring.getRequiredResourceWires(PackageNamespace.PACKAGE_NAMESPACE)) {
+            XPackageRequirement preq = ((XRequirement) wire.getRequirement()).adapt(XPackageRequirement.class);
+            if (preq != null && packageName.equals(preq.getPackageName())) {
+                return true;
+            }
+        }
+        return false;
     }
 
     @Override
@@ -168,7 +225,7 @@ public class AbstractWiring implements XWiring {
             if (!removed) {
                 String capns = cap.getNamespace();
                 Object capval = cap.getAttributes().get(capns);
-                for (Wire wire : required) {
+                for (Wire wire : getRequiredResourceWires(null)) {
                     Capability wirecap = wire.getCapability();
                     Object wirecapval = wirecap.getAttributes().get(wirecap.getNamespace());
                     if (capns.equals(wirecap.getNamespace()) && capval.equals(wirecapval)) {
@@ -219,6 +276,10 @@ public class AbstractWiring implements XWiring {
     @Override
     public List<Wire> getProvidedResourceWires(String namespace) {
         List<Wire> result = new ArrayList<Wire>();
+        XWiring parent = getParent();
+        if (parent != null) {
+            result.addAll(parent.getProvidedResourceWires(namespace));
+        }
         if (namespace != null) {
             List<Wire> nswires = provided.get(namespace);
             if (nswires != null) {
@@ -235,6 +296,10 @@ public class AbstractWiring implements XWiring {
     @Override
     public List<Wire> getRequiredResourceWires(String namespace) {
         List<Wire> result = new ArrayList<Wire>();
+        XWiring parent = getParent();
+        if (parent != null) {
+            result.addAll(parent.getRequiredResourceWires(namespace));
+        }
         for (Wire wire : required) {
             Requirement req = wire.getRequirement();
             if (namespace == null || namespace.equals(req.getNamespace())) {
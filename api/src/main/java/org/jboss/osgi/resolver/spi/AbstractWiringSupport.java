@@ -20,6 +20,7 @@
 
 package org.jboss.osgi.resolver.spi;
 
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -38,6 +39,7 @@ public class AbstractWiringSupport extends AbstractElement implements XWiringSup
 
     private final AtomicReference<XWiring> wiring = new AtomicReference<XWiring>();
     private final AtomicBoolean effective = new AtomicBoolean(true);
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
 
     @Override
     public boolean isEffective() {
@@ -47,6 +49,7 @@ public class AbstractWiringSupport extends AbstractElement implements XWiringSup
     @Override
     public void makeUneffective() {
         effective.set(false);
+        fireWiringChanged();
     }
 
     @Override
@@ -58,10 +61,31 @@ public class AbstractWiringSupport extends AbstractElement implements XWiringSup
     @Override
     public void setWiring(XWiring wiring) {
         this.wiring.set(wiring);
+        fireWiringChanged();
     }
 
     @Override
     public void refresh() {
         wiring.set(null);
+        fireWiringChanged();
+    }
+
+    // Register a listener that is called after the effective wiring may have changed
+    void addListener(Listener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    private void fireWiringChanged() {
+        for (Listener listener : listeners) {
+            listener.wiringChanged();
+        }
+    }
+
+    /**
+     * A listener that is notified after the wiring or the effective state has been changed.
+     */
+    interface Listener {
+
+        void wiringChanged();
     }
 }
@@ -19,6 +19,7 @@
  */
 package org.jboss.osgi.resolver.spi;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -31,7 +32,7 @@ import org.jboss.osgi.resolver.XAttributeSupport;
  * @since 02-Jul-2010
  */
 public class AttributeSupporter implements XAttributeSupport {
-    private Map<String, Object> attributes;
+    private volatile Map<String, Object> attributes;
 
     AttributeSupporter(Map<String, Object> attributes) {
         this.attributes = attributes;
@@ -44,13 +45,33 @@ public class AttributeSupporter implements XAttributeSupport {
 
     @Override
     public Map<String, Object> getAttributes() {
-        if (attributes == null)
-            attributes = new HashMap<String, Object>();
-        return attributes;
+        Map<String, Object> result = attributes;
+        if (result == null || result instanceof CompactMap) {
+            result = result != null ? new HashMap<String, Object>(result) : new HashMap<String, Object>();
+            attributes = result;
+        }
+        return result;
+    }
+
+    /**
+     * Get a read only view of the attributes without copying them.
+     */
+    Map<String, Object> getImmutableAttributes() {
+        Map<String, Object> result = attributes;
+        if (result == null)
+            return Collections.emptyMap();
+        return result instanceof CompactMap ? result : Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * Replace the attributes with a compact immutable copy. A later call to {@link #getAttributes()} makes them mutable again.
+     */
+    void freeze() {
+        attributes = CompactMap.create(attributes);
     }
 
     @Override
     public String toString() {
-        return getAttributes().toString();
+        return getImmutableAttributes().toString();
     }
 }
\ No newline at end of file
@@ -0,0 +1,128 @@
+/*
+ * #%L
+ * JBossOSGi Resolver API
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.resolver.spi;
+
+import org.osgi.resource.Capability;
+import org.osgi.resource.Requirement;
+
+/**
+ * The key of a capability index bucket, which is the namespace and the namespace value.
+ *
+ * A key created for a requirement also carries the filter operator of the namespace value.
+ *
+ * @author thomas.diesler@jboss.com
+ * @since 02-Jul-2010
+ */
+final class CacheKey {
+
+    private final String namespace;
+    private final String value;
+    private final String keyspec;
+    private final String operator;
+    private final String prefix;
+
+    static CacheKey create(Capability cap) {
+        String namespace = cap.getNamespace();
+        String nsvalue = (String) cap.getAttributes().get(namespace);
+        return new CacheKey(namespace, nsvalue, null);
+    }
+
+    static CacheKey create(Requirement req) {
+        if (req instanceof AbstractRequirement) {
+            CacheKey cachekey = ((AbstractRequirement) req).getCacheKey();
+            if (cachekey != null) {
+                return cachekey;
+            }
+        }
+        String namespace = req.getNamespace();
+        StringBuffer opbuffer = new StringBuffer();
+        String nsvalue = AbstractRequirement.getNamespaceValue(req, opbuffer);
+        String operator = opbuffer.length() > 0 ? opbuffer.toString() : null;
+        return new CacheKey(namespace, nsvalue, operator);
+    }
+
+    CacheKey(String namespace, String value, String operator) {
+        this.namespace = namespace;
+        this.value = value;
+        this.operator = operator;
+        this.keyspec = namespace + ":" + value;
+        this.prefix = "=".equals(operator) ? getWildcardPrefix(value) : null;
+    }
+
+    String getNamespace() {
+        return namespace;
+    }
+
+    String getValue() {
+        return value;
+    }
+
+    String getOperator() {
+        return operator;
+    }
+
+    /**
+     * True if the key selects a single namespace value
+     */
+    boolean isExact() {
+        return value != null && "=".equals(operator) && prefix == null;
+    }
+
+    /**
+     * Get the literal prefix of a substring value like 'com.acme.*' or null if there is no wildcard
+     */
+    String getWildcardPrefix() {
+        return prefix;
+    }
+
+    private static String getWildcardPrefix(String value) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; value != null && i < value.length(); i++) {
+            char ch = value.charAt(i);
+            if (ch == '*') {
+                return builder.toString();
+            } else if (ch == '\\' && i + 1 < value.length()) {
+                ch = value.charAt(++i);
+            }
+            builder.append(ch);
+        }
+        return null;
+    }
+
+    @Override
+    public int hashCode() {
+        return keyspec.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (!(obj instanceof CacheKey))
+            return false;
+        CacheKey other = (CacheKey) obj;
+        return keyspec.equals(other.keyspec);
+    }
+
+    @Override
+    public String toString() {
+        return "[" + keyspec + "]";
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * #%L
+ * JBossOSGi Resolver API
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.resolver.spi;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable map that stores its keys and values in parallel arrays.
+ *
+ * Attribute and directive maps are small and are only read once their resource is immutable.
+ * This map holds no per entry objects and is returned as is, so a lookup allocates nothing.
+ * Entries iterate in the order of the map it was created from.
+ *
+ * @author agent@local
+ * @since 17-Oct-2026
+ */
+final class CompactMap<V> extends AbstractMap<String, V> {
+
+    private static final CompactMap<Object> EMPTY = new CompactMap<Object>(new String[0], new int[0], new Object[0]);
+
+    private final String[] keys;
+    private final int[] hashes;
+    private final Object[] values;
+    private transient Set<Map.Entry<String, V>> entrySet;
+
+    private CompactMap(String[] keys, int[] hashes, Object[] values) {
+        this.keys = keys;
+        this.hashes = hashes;
+        this.values = values;
+    }
+
+    /**
+     * Get a compact copy of the given map. A compact map is returned as is.
+     */
+    @SuppressWarnings("unchecked")
+    static <V> Map<String, V> create(Map<String, V> map) {
+        if (map instanceof CompactMap)
+            return map;
+        if (map == null || map.isEmpty())
+            return (Map<String, V>) EMPTY;
+        int size = map.size();
+        String[] keys = new String[size];
+        int[] hashes = new int[size];
+        Object[] values = new Object[size];
+        int i = 0;
+        for (Map.Entry<String, V> entry : map.entrySet()) {
+            String key = entry.getKey();
+            keys[i] = key;
+            hashes[i] = key != null ? key.hashCode() : 0;
+            values[i] = entry.getValue();
+            i++;
+        }
+        return new CompactMap<V>(keys, hashes, values);
+    }
+
+    private int indexOf(Object key) {
+        if (key == null) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == null)
+                    return i;
+            }
+        } else if (key instanceof String) {
+            int hash = key.hashCode();
+            for (int i = 0; i < keys.length; i++) {
+                String other = keys[i];
+                if (other == key || (hashes[i] == hash && key.equals(other)))
+                    return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        int index = indexOf(key);
+        return index >= 0 ? (V) values[index] : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return keys.length;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return keys.length == 0;
+    }
+
+    @Override
+    public Set<Map.Entry<String, V>> entrySet() {
+        Set<Map.Entry<String, V>> result = entrySet;
+        if (result == null) {
+            result = new AbstractSet<Map.Entry<String, V>>() {
+
+                @Override
+                public Iterator<Map.Entry<String, V>> iterator() {
+                    return new EntryIterator();
+                }
+
+                @Override
+                public int size() {
+                    return keys.length;
+                }
+            };
+            entrySet = result;
+        }
+        return result;
+    }
+
+    private final class EntryIterator implements Iterator<Map.Entry<String, V>> {
+
+        private int index;
+
+        @Override
+        public boolean hasNext() {
+            return index < keys.length;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Map.Entry<String, V> next() {
+            if (index >= keys.length)
+                throw new NoSuchElementException();
+            int i = index++;
+            return new AbstractMap.SimpleImmutableEntry<String, V>(keys[i], (V) values[i]);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
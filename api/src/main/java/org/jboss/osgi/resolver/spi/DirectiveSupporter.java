@@ -19,6 +19,7 @@
  */
 package org.jboss.osgi.resolver.spi;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -31,7 +32,7 @@ import org.jboss.osgi.resolver.XDirectiveSupport;
  * @since 02-Jul-2010
  */
 public class DirectiveSupporter implements XDirectiveSupport {
-    private Map<String, String> directives;
+    private volatile Map<String, String> directives;
 
     DirectiveSupporter(Map<String, String> directives) {
         this.directives = directives;
@@ -44,13 +45,33 @@ public class DirectiveSupporter implements XDirectiveSupport {
 
     @Override
     public Map<String, String> getDirectives() {
-        if (directives == null)
-            directives = new HashMap<String, String>();
-        return directives;
+        Map<String, String> result = directives;
+        if (result == null || result instanceof CompactMap) {
+            result = result != null ? new HashMap<String, String>(result) : new HashMap<String, String>();
+            directives = result;
+        }
+        return result;
+    }
+
+    /**
+     * Get a read only view of the directives without copying them.
+     */
+    Map<String, String> getImmutableDirectives() {
+        Map<String, String> result = directives;
+        if (result == null)
+            return Collections.emptyMap();
+        return result instanceof CompactMap ? result : Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * Replace the directives with a compact immutable copy. A later call to {@link #getDirectives()} makes them mutable again.
+     */
+    void freeze() {
+        directives = CompactMap.create(directives);
     }
 
     @Override
     public String toString() {
-        return getDirectives().toString();
+        return getImmutableDirectives().toString();
     }
 }
\ No newline at end of file
@@ -0,0 +1,418 @@
+/*
+ * #%L
+ * JBossOSGi Resolver API
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.resolver.spi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.Version;
+
+/**
+ * A requirement filter compiled into a tree of attribute matchers.
+ *
+ * String and {@link Version} attributes are matched directly against values that are parsed once at compile time.
+ * Attributes of any other type are delegated to a framework {@link Filter} for the single comparison.
+ *
+ * @author agent@local
+ * @since 17-Oct-2026
+ */
+abstract class FilterMatcher {
+
+    static final int EQUAL = 1;
+    static final int APPROX = 2;
+    static final int GREATER = 3;
+    static final int LESS = 4;
+    static final int SUBSTRING = 5;
+
+    /**
+     * Compile the given filter. If the filter cannot be compiled, the returned matcher delegates to it.
+     */
+    static FilterMatcher compile(Filter filter) {
+        String filterstr = filter.toString();
+        try {
+            Parser parser = new Parser(filterstr);
+            FilterMatcher result = parser.parseFilter();
+            if (parser.pos == filterstr.length()) {
+                return result;
+            }
+        } catch (RuntimeException ex) {
+            // fall through
+        }
+        return new Delegate(filter);
+    }
+
+    abstract boolean matches(Map<String, ?> atts);
+
+    /**
+     * Get the equality comparisons that must all hold for this filter to match.
+     */
+    List<Compare> getEqualityConjuncts() {
+        return Collections.emptyList();
+    }
+
+    static final class And extends FilterMatcher {
+
+        private final FilterMatcher[] operands;
+
+        And(FilterMatcher[] operands) {
+            this.operands = operands;
+        }
+
+        @Override
+        List<Compare> getEqualityConjuncts() {
+            List<Compare> result = new ArrayList<Compare>();
+            for (FilterMatcher operand : operands) {
+                result.addAll(operand.getEqualityConjuncts());
+            }
+            return result;
+        }
+
+        @Override
+        boolean matches(Map<String, ?> atts) {
+            for (FilterMatcher operand : operands) {
+                if (!operand.matches(atts)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    static final class Or extends FilterMatcher {
+
+        private final FilterMatcher[] operands;
+
+        Or(FilterMatcher[] operands) {
+            this.operands = operands;
+        }
+
+        @Override
+        boolean matches(Map<String, ?> atts) {
+            for (FilterMatcher operand : operands) {
+                if (operand.matches(atts)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    static final class Not extends FilterMatcher {
+
+        private final FilterMatcher operand;
+
+        Not(FilterMatcher operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        boolean matches(Map<String, ?> atts) {
+            return !operand.matches(atts);
+        }
+    }
+
+    static final class Present extends FilterMatcher {
+
+        private final String attribute;
+
+        Present(String attribute) {
+            this.attribute = attribute;
+        }
+
+        @Override
+        boolean matches(Map<String, ?> atts) {
+            return atts.get(attribute) != null;
+        }
+    }
+
+    static final class Compare extends FilterMatcher {
+
+        private final String attribute;
+        private final int operator;
+        private final String value;
+        private final String[] substrings;
+        private final Version version;
+        private final String filterspec;
+        private volatile Filter delegate;
+
+        Compare(String attribute, int operator, String value, String[] substrings, String filterspec) {
+            this.attribute = attribute;
+            this.operator = operator;
+            this.value = value;
+            this.substrings = substrings;
+            this.filterspec = filterspec;
+            this.version = operator != SUBSTRING ? parseVersion(value) : null;
+        }
+
+        String getAttribute() {
+            return attribute;
+        }
+
+        String getValue() {
+            return value;
+        }
+
+        @Override
+        List<Compare> getEqualityConjuncts() {
+            return operator == EQUAL ? Collections.singletonList(this) : Collections.<Compare> emptyList();
+        }
+
+        @Override
+        boolean matches(Map<String, ?> atts) {
+            Object attval = atts.get(attribute);
+            if (attval == null) {
+                return false;
+            } else if (attval instanceof String) {
+                return matchString((String) attval);
+            } else if (attval instanceof Version) {
+                return matchVersion((Version) attval);
+            } else {
+                return getDelegate().matches(atts);
+            }
+        }
+
+        private boolean matchString(String attval) {
+            switch (operator) {
+                case EQUAL:
+                    return attval.equals(value);
+                case APPROX:
+                    return approxString(attval).equalsIgnoreCase(approxString(value));
+                case GREATER:
+                    return attval.compareTo(value) >= 0;
+                case LESS:
+                    return attval.compareTo(value) <= 0;
+                default:
+                    return matchSubstring(attval);
+            }
+        }
+
+        private boolean matchVersion(Version attval) {
+            if (version == null) {
+                return false;
+            }
+            int comp = attval.compareTo(version);
+            switch (operator) {
+                case EQUAL:
+                case APPROX:
+                    return comp == 0;
+                case GREATER:
+                    return comp >= 0;
+                case LESS:
+                    return comp <= 0;
+                default:
+                    return false;
+            }
+        }
+
+        // The substrings contain a null element for every wildcard. A literal after a wildcard is searched for,
+        // except for the final literal, which must end the value without overlapping what was matched before it.
+        private boolean matchSubstring(String attval) {
+            int pos = 0;
+            int last = substrings.length - 1;
+            for (int i = 0; i <= last; i++) {
+                String substr = substrings[i];
+                if (substr == null) {
+                    continue;
+                }
+                if (i == 0) {
+                    if (!attval.startsWith(substr)) {
+                        return false;
+                    }
+                    pos = substr.length();
+                } else if (i == last) {
+                    return attval.endsWith(substr) && attval.length() - substr.length() >= pos;
+                } else {
+                    int index = attval.indexOf(substr, pos);
+                    if (index < 0) {
+                        return false;
+                    }
+                    pos = index + substr.length();
+                }
+            }
+            return true;
+        }
+
+        private Filter getDelegate() {
+            Filter result = delegate;
+            if (result == null) {
+                try {
+                    result = FrameworkUtil.createFilter(filterspec);
+                } catch (InvalidSyntaxException ex) {
+                    throw new IllegalStateException(ex);
+                }
+                delegate = result;
+            }
+            return result;
+        }
+
+        private static Version parseVersion(String value) {
+            try {
+                return Version.parseVersion(value.trim());
+            } catch (IllegalArgumentException ex) {
+                return null;
+            }
+        }
+
+        private static String approxString(String value) {
+            StringBuilder builder = new StringBuilder(value.length());
+            for (int i = 0; i < value.length(); i++) {
+                char ch = value.charAt(i);
+                if (!Character.isWhitespace(ch)) {
+                    builder.append(ch);
+                }
+            }
+            return builder.toString();
+        }
+    }
+
+    static final class Delegate extends FilterMatcher {
+
+        private final Filter filter;
+
+        Delegate(Filter filter) {
+            this.filter = filter;
+        }
+
+        @Override
+        boolean matches(Map<String, ?> atts) {
+            return filter.matches(atts);
+        }
+    }
+
+    /**
+     * Parses the normalized string representation of a filter.
+     */
+    private static final class Parser {
+
+        private final String filterstr;
+        private int pos;
+
+        Parser(String filterstr) {
+            this.filterstr = filterstr;
+        }
+
+        FilterMatcher parseFilter() {
+            int start = pos;
+            expect('(');
+            FilterMatcher result;
+            char ch = filterstr.charAt(pos);
+            if (ch == '&') {
+                pos++;
+                result = new And(parseFilterList());
+            } else if (ch == '|') {
+                pos++;
+                result = new Or(parseFilterList());
+            } else if (ch == '!') {
+                pos++;
+                result = new Not(parseFilter());
+            } else {
+                result = parseItem(start);
+            }
+            expect(')');
+            return result;
+        }
+
+        private FilterMatcher[] parseFilterList() {
+            List<FilterMatcher> operands = new ArrayList<FilterMatcher>();
+            while (filterstr.charAt(pos) == '(') {
+                operands.add(parseFilter());
+            }
+            if (operands.isEmpty()) {
+                throw new IllegalArgumentException(filterstr);
+            }
+            return operands.toArray(new FilterMatcher[operands.size()]);
+        }
+
+        private FilterMatcher parseItem(int start) {
+            int attstart = pos;
+            while ("~<>=()".indexOf(filterstr.charAt(pos)) < 0) {
+                pos++;
+            }
+            String attribute = filterstr.substring(attstart, pos).trim();
+            if (attribute.length() == 0) {
+                throw new IllegalArgumentException(filterstr);
+            }
+            int operator;
+            char ch = filterstr.charAt(pos);
+            if (ch == '=') {
+                operator = EQUAL;
+                pos++;
+            } else {
+                if (filterstr.charAt(pos + 1) != '=') {
+                    throw new IllegalArgumentException(filterstr);
+                }
+                operator = ch == '~' ? APPROX : ch == '>' ? GREATER : ch == '<' ? LESS : 0;
+                if (operator == 0) {
+                    throw new IllegalArgumentException(filterstr);
+                }
+                pos += 2;
+            }
+
+            // Parse the value, a wildcard in an equality value makes it a substring match
+            List<String> substrings = new ArrayList<String>();
+            StringBuilder builder = new StringBuilder();
+            boolean wildcard = false;
+            char valch = filterstr.charAt(pos);
+            while (valch != ')') {
+                if (valch == '(') {
+                    throw new IllegalArgumentException(filterstr);
+                }
+                if (valch == '*' && operator == EQUAL) {
+                    if (builder.length() > 0) {
+                        substrings.add(builder.toString());
+                        builder.setLength(0);
+                    }
+                    substrings.add(null);
+                    wildcard = true;
+                } else {
+                    if (valch == '\\') {
+                        valch = filterstr.charAt(++pos);
+                    }
+                    builder.append(valch);
+                }
+                valch = filterstr.charAt(++pos);
+            }
+            if (!wildcard) {
+                String filterspec = filterstr.substring(start, pos + 1);
+                return new Compare(attribute, operator, builder.toString(), null, filterspec);
+            }
+            if (builder.length() > 0) {
+                substrings.add(builder.toString());
+            }
+            if (substrings.size() == 1) {
+                return new Present(attribute);
+            }
+            String filterspec = filterstr.substring(start, pos + 1);
+            return new Compare(attribute, SUBSTRING, null, substrings.toArray(new String[substrings.size()]), filterspec);
+        }
+
+        private void expect(char ch) {
+            if (filterstr.charAt(pos) != ch) {
+                throw new IllegalArgumentException(filterstr);
+            }
+            pos++;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * #%L
+ * JBossOSGi Resolver API
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.resolver.spi;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.jboss.osgi.resolver.XResource;
+import org.jboss.osgi.resolver.internal.PersistentMap;
+
+/**
+ * An immutable index of the installed fragments and the installed hosts they can attach to.
+ *
+ * Fragments are indexed by the symbolic name of their host requirement. Fragments with a host requirement
+ * that does not name a single host are candidates for every host.
+ *
+ * @author agent@local
+ * @since 17-Oct-2026
+ */
+final class FragmentIndex {
+
+    static final FragmentIndex EMPTY = new FragmentIndex(PersistentMap.<String, Set<XResource>> empty(), Collections.<XResource> emptySet(),
+            PersistentMap.<XResource, Set<XResource>> empty(), PersistentMap.<XResource, Set<XResource>> empty());
+
+    private final PersistentMap<String, Set<XResource>> fragmentsByName;
+    private final Set<XResource> unnamedFragments;
+    private final PersistentMap<XResource, Set<XResource>> fragmentHosts;
+    private final PersistentMap<XResource, Set<XResource>> hostFragments;
+
+    private FragmentIndex(PersistentMap<String, Set<XResource>> fragmentsByName, Set<XResource> unnamedFragments,
+            PersistentMap<XResource, Set<XResource>> fragmentHosts, PersistentMap<XResource, Set<XResource>> hostFragments) {
+        this.fragmentsByName = fragmentsByName;
+        this.unnamedFragments = unnamedFragments;
+        this.fragmentHosts = fragmentHosts;
+        this.hostFragments = hostFragments;
+    }
+
+    /**
+     * Get the installed hosts that match the host requirement of the given fragment or null if the fragment is not indexed.
+     */
+    Set<XResource> getHosts(XResource fragment) {
+        return fragmentHosts.get(fragment);
+    }
+
+    /**
+     * Get the fragments that may attach to a host with the given symbolic name.
+     */
+    Collection<XResource> getFragments(String hostName) {
+        Set<XResource> named = hostName != null ? fragmentsByName.get(hostName) : null;
+        if (named == null)
+            return unnamedFragments;
+        if (unnamedFragments.isEmpty())
+            return named;
+        Set<XResource> result = new LinkedHashSet<XResource>(named);
+        result.addAll(unnamedFragments);
+        return result;
+    }
+
+    FragmentIndex addFragment(XResource fragment, String hostName) {
+        PersistentMap<String, Set<XResource>> byname = fragmentsByName;
+        Set<XResource> unnamed = unnamedFragments;
+        if (hostName != null) {
+            byname = byname.put(hostName, copyOnWrite(byname.get(hostName), fragment, true));
+        } else {
+            unnamed = copyOnWrite(unnamed, fragment, true);
+        }
+        PersistentMap<XResource, Set<XResource>> frags = fragmentHosts;
+        if (!frags.containsKey(fragment)) {
+            frags = frags.put(fragment, Collections.<XResource> emptySet());
+        }
+        return new FragmentIndex(byname, unnamed, frags, hostFragments);
+    }
+
+    FragmentIndex link(XResource fragment, XResource host) {
+        Set<XResource> hosts = fragmentHosts.get(fragment);
+        if (hosts == null || hosts.contains(host))
+            return this;
+        PersistentMap<XResource, Set<XResource>> frags = fragmentHosts.put(fragment, copyOnWrite(hosts, host, true));
+        PersistentMap<XResource, Set<XResource>> hostfrags = hostFragments.put(host, copyOnWrite(hostFragments.get(host), fragment, true));
+        return new FragmentIndex(fragmentsByName, unnamedFragments, frags, hostfrags);
+    }
+
+    FragmentIndex remove(XResource res, String hostName) {
+        PersistentMap<String, Set<XResource>> byname = fragmentsByName;
+        Set<XResource> unnamed = unnamedFragments;
+        PersistentMap<XResource, Set<XResource>> frags = fragmentHosts;
+        PersistentMap<XResource, Set<XResource>> hostfrags = hostFragments;
+
+        // Remove the resource as a fragment
+        Set<XResource> hosts = frags.get(res);
+        if (hosts != null) {
+            if (hostName != null) {
+                Set<XResource> named = copyOnWrite(byname.get(hostName), res, false);
+                byname = named.isEmpty() ? byname.remove(hostName) : byname.put(hostName, named);
+            } else {
+                unnamed = copyOnWrite(unnamed, res, false);
+            }
+            for (XResource host : hosts) {
+                Set<XResource> fragments = copyOnWrite(hostfrags.get(host), res, false);
+                hostfrags = fragments.isEmpty() ? hostfrags.remove(host) : hostfrags.put(host, fragments);
+            }
+            frags = frags.remove(res);
+        }
+
+        // Remove the resource as a host
+        Set<XResource> fragments = hostfrags.get(res);
+        if (fragments != null) {
+            for (XResource fragment : fragments) {
+                Set<XResource> fraghosts = frags.get(fragment);
+                if (fraghosts != null) {
+                    frags = frags.put(fragment, copyOnWrite(fraghosts, res, false));
+                }
+            }
+            hostfrags = hostfrags.remove(res);
+        }
+        return new FragmentIndex(byname, unnamed, frags, hostfrags);
+    }
+
+    private static Set<XResource> copyOnWrite(Set<XResource> snapshot, XResource res, boolean add) {
+        Set<XResource> result = snapshot != null ? new LinkedHashSet<XResource>(snapshot) : new LinkedHashSet<XResource>();
+        if (add) {
+            result.add(res);
+        } else {
+            result.remove(res);
+        }
+        return Collections.unmodifiableSet(result);
+    }
+}
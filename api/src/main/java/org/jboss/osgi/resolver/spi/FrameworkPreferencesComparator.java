@@ -52,8 +52,8 @@ class FrameworkPreferencesComparator extends ResourceIndexComparator {
         Resource res2 = o2.getResource();
 
         // prefer system bundle
-        Long in1 = getResourceIndex((XResource) o1.getResource());
-        Long in2 = getResourceIndex((XResource) o2.getResource());
+        long in1 = getResourceIndex((XResource) o1.getResource());
+        long in2 = getResourceIndex((XResource) o2.getResource());
         if (in1 == 0 || in2 == 0) {
             return (int)(in1 - in2);
         }
@@ -87,6 +87,6 @@ class FrameworkPreferencesComparator extends ResourceIndexComparator {
         }
 
         // prefer lower index
-        return in1.compareTo(in2);
+        return in1 < in2 ? -1 : (in1 == in2 ? 0 : 1);
     }
 }
@@ -0,0 +1,163 @@
+/*
+ * #%L
+ * JBossOSGi Resolver API
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.resolver.spi;
+
+import java.lang.ref.WeakReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.osgi.framework.Version;
+import org.osgi.framework.VersionRange;
+import org.osgi.resource.Resource;
+
+/**
+ * A pool of canonical instances for the values that many resources repeat.
+ *
+ * Namespaces, package names, directive values, filter strings, versions and version ranges are shared
+ * between all resources that declare them. Canonical instances are weakly held, so values that no resource
+ * references anymore are reclaimed. A bounded cache maps version and range specifications to their parsed form.
+ *
+ * Every environment has its own pool, resources that are not built for an environment share the default pool.
+ * The values are spread over segments by hash and every segment has its own lock.
+ *
+ * @author agent@local
+ * @since 17-Oct-2026
+ */
+final class InternPool {
+
+    private static final int SEGMENTS = 16;
+    private static final int MAX_PARSED_ENTRIES = 4096;
+
+    static final InternPool DEFAULT = new InternPool();
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    InternPool() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * Get the pool of the given resource.
+     */
+    static InternPool getPool(Resource res) {
+        return res instanceof AbstractResource ? ((AbstractResource) res).getInternPool() : DEFAULT;
+    }
+
+    String intern(String value) {
+        return value != null ? internObject(value) : null;
+    }
+
+    Version intern(Version value) {
+        return value != null ? internObject(value) : null;
+    }
+
+    VersionRange intern(VersionRange value) {
+        return value != null ? internObject(value) : null;
+    }
+
+    /**
+     * Intern the given attribute or directive value if it is of a shared type.
+     */
+    Object internValue(Object value) {
+        if (value instanceof String || value instanceof Version || value instanceof VersionRange) {
+            return internObject(value);
+        }
+        return value;
+    }
+
+    /**
+     * Get the canonical version for the given specification.
+     *
+     * @throws IllegalArgumentException if the specification is improperly formatted
+     */
+    Version getVersion(String spec) {
+        Segment segment = getSegment(spec);
+        Version result = segment.getParsed(segment.versions, spec);
+        if (result == null) {
+            result = intern(Version.parseVersion(spec));
+            segment.putParsed(segment.versions, spec, result);
+        }
+        return result;
+    }
+
+    /**
+     * Get the canonical version range for the given specification.
+     *
+     * @throws IllegalArgumentException if the specification is improperly formatted
+     */
+    VersionRange getVersionRange(String spec) {
+        Segment segment = getSegment(spec);
+        VersionRange result = segment.getParsed(segment.ranges, spec);
+        if (result == null) {
+            result = intern(new VersionRange(spec));
+            segment.putParsed(segment.ranges, spec, result);
+        }
+        return result;
+    }
+
+    private <T> T internObject(T value) {
+        return getSegment(value).intern(value);
+    }
+
+    private Segment getSegment(Object value) {
+        int h = value.hashCode();
+        return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    private static final class Segment {
+
+        private final Map<Object, WeakReference<Object>> canonical = new WeakHashMap<Object, WeakReference<Object>>();
+        private final Map<String, Version> versions = newParsedCache();
+        private final Map<String, VersionRange> ranges = newParsedCache();
+
+        @SuppressWarnings("unchecked")
+        synchronized <T> T intern(T value) {
+            WeakReference<Object> ref = canonical.get(value);
+            Object result = ref != null ? ref.get() : null;
+            if (result == null) {
+                canonical.put(value, new WeakReference<Object>(value));
+                result = value;
+            }
+            return (T) result;
+        }
+
+        synchronized <V> V getParsed(Map<String, V> cache, String spec) {
+            return cache.get(spec);
+        }
+
+        synchronized <V> void putParsed(Map<String, V> cache, String spec, V value) {
+            cache.put(spec, value);
+        }
+
+        private static <V> Map<String, V> newParsedCache() {
+            return new LinkedHashMap<String, V>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                    return size() > MAX_PARSED_ENTRIES / SEGMENTS;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * #%L
+ * JBossOSGi Resolver API
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.resolver.spi;
+
+/**
+ * An immutable map with non-negative long keys that shares structure with the map it was derived from.
+ *
+ * The values are kept in a trie with 32 slots per node that is indexed by the bits of the key. Keys that
+ * are allocated in sequence fill the nodes densely, a lookup does not box the key or compute a hash.
+ *
+ * @author agent@local
+ * @since 17-Oct-2026
+ */
+final class PersistentLongMap<V> {
+
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+
+    @SuppressWarnings("rawtypes")
+    private static final PersistentLongMap EMPTY = new PersistentLongMap(null, 0, 0);
+
+    private final Object[] root;
+    private final int shift;
+    private final int size;
+
+    @SuppressWarnings("unchecked")
+    static <V> PersistentLongMap<V> empty() {
+        return EMPTY;
+    }
+
+    private PersistentLongMap(Object[] root, int shift, int size) {
+        this.root = root;
+        this.shift = shift;
+        this.size = size;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        if (root == null || key < 0 || !fits(key, shift))
+            return null;
+        Object[] node = root;
+        for (int level = shift; level > 0; level -= BITS) {
+            node = (Object[]) node[(int) (key >>> level) & MASK];
+            if (node == null)
+                return null;
+        }
+        return (V) node[(int) key & MASK];
+    }
+
+    PersistentLongMap<V> put(long key, V value) {
+        if (key < 0)
+            throw new IllegalArgumentException("Negative key: " + key);
+        if (value == null)
+            throw new IllegalArgumentException("Null value");
+        V previous = get(key);
+        if (previous == value)
+            return this;
+
+        // Add levels on top until the key fits
+        Object[] node = root != null ? root : new Object[WIDTH];
+        int level = shift;
+        while (!fits(key, level)) {
+            Object[] parent = new Object[WIDTH];
+            parent[0] = node;
+            node = parent;
+            level += BITS;
+        }
+        return new PersistentLongMap<V>(put(node, level, key, value), level, previous != null ? size : size + 1);
+    }
+
+    PersistentLongMap<V> remove(long key) {
+        if (get(key) == null)
+            return this;
+        Object[] node = remove(root, shift, key);
+        return node != null ? new PersistentLongMap<V>(node, shift, size - 1) : PersistentLongMap.<V> empty();
+    }
+
+    // True if the key can be stored in a trie with the given root level
+    private static boolean fits(long key, int level) {
+        return level + BITS >= Long.SIZE || (key >>> (level + BITS)) == 0;
+    }
+
+    private static Object[] put(Object[] node, int level, long key, Object value) {
+        Object[] result = node.clone();
+        int index = (int) (key >>> level) & MASK;
+        if (level == 0) {
+            result[index] = value;
+        } else {
+            Object[] child = (Object[]) node[index];
+            result[index] = put(child != null ? child : new Object[WIDTH], level - BITS, key, value);
+        }
+        return result;
+    }
+
+    // Returns null if the node becomes empty
+    private static Object[] remove(Object[] node, int level, long key) {
+        int index = (int) (key >>> level) & MASK;
+        Object replacement = level > 0 ? remove((Object[]) node[index], level - BITS, key) : null;
+        for (int i = 0; i < WIDTH; i++) {
+            if (i != index && node[i] != null) {
+                Object[] result = node.clone();
+                result[index] = replacement;
+                return result;
+            }
+        }
+        if (replacement == null)
+            return null;
+        Object[] result = new Object[WIDTH];
+        result[index] = replacement;
+        return result;
+    }
+}
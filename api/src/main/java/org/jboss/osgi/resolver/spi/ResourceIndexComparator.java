@@ -46,12 +46,17 @@ class ResourceIndexComparator implements Comparator<Capability> {
 
     @Override
     public int compare(Capability o1, Capability o2) {
-        Long in1 = getResourceIndex((XResource) o1.getResource());
-        Long in2 = getResourceIndex((XResource) o2.getResource());
-        return in1.compareTo(in2);
+        long in1 = getResourceIndex((XResource) o1.getResource());
+        long in2 = getResourceIndex((XResource) o2.getResource());
+        return in1 < in2 ? -1 : (in1 == in2 ? 0 : 1);
     }
 
-    Long getResourceIndex(XResource res) {
+    long getResourceIndex(XResource res) {
+        if (res instanceof AbstractResource) {
+            long index = ((AbstractResource) res).getResourceIndex();
+            if (index >= 0)
+                return index;
+        }
         return res.getAttachment(XResource.RESOURCE_IDENTIFIER_KEY);
     }
 }
@@ -0,0 +1,187 @@
+/*
+ * #%L
+ * JBossOSGi Resolver API
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.test.osgi.resolver.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.Set;
+
+import org.jboss.osgi.resolver.internal.PersistentMap;
+import org.junit.Test;
+
+/**
+ * Unit tests for the {@link PersistentMap} class
+ *
+ * @author agent@local
+ */
+public class PersistentMapTestCase {
+
+    @Test
+    public void testPutAndGet() throws Exception {
+        PersistentMap<String, Integer> empty = PersistentMap.empty();
+        PersistentMap<String, Integer> map = empty.put("a", 1).put("b", 2);
+        assertEquals(2, map.size());
+        assertEquals(Integer.valueOf(1), map.get("a"));
+        assertEquals(Integer.valueOf(2), map.get("b"));
+        assertNull(map.get("c"));
+        assertNull(map.get(null));
+
+        // Updates do not modify the map they are derived from
+        PersistentMap<String, Integer> updated = map.put("a", 3);
+        assertEquals(2, updated.size());
+        assertEquals(Integer.valueOf(3), updated.get("a"));
+        assertEquals(Integer.valueOf(1), map.get("a"));
+        assertTrue(empty.isEmpty());
+
+        // Putting the same value instance returns the map itself
+        assertSame(updated, updated.put("a", updated.get("a")));
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        PersistentMap<String, Integer> map = PersistentMap.empty();
+        map = map.put("a", 1).put("b", 2);
+        PersistentMap<String, Integer> removed = map.remove("a");
+        assertEquals(1, removed.size());
+        assertNull(removed.get("a"));
+        assertEquals(Integer.valueOf(1), map.get("a"));
+        assertSame(removed, removed.remove("a"));
+        assertTrue(removed.remove("b").isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNullValue() throws Exception {
+        PersistentMap.<String, Integer> empty().put("a", null);
+    }
+
+    @Test
+    public void testCollisions() throws Exception {
+        CollidingKey keyA = new CollidingKey("a");
+        CollidingKey keyB = new CollidingKey("b");
+        CollidingKey keyC = new CollidingKey("c");
+        PersistentMap<CollidingKey, String> map = PersistentMap.empty();
+        map = map.put(keyA, "a").put(keyB, "b").put(keyC, "c");
+        assertEquals(3, map.size());
+        assertEquals("a", map.get(keyA));
+        assertEquals("b", map.get(keyB));
+        assertEquals("c", map.get(new CollidingKey("c")));
+        assertNull(map.get(new CollidingKey("d")));
+
+        map = map.put(keyB, "bb").remove(keyA);
+        assertEquals(2, map.size());
+        assertNull(map.get(keyA));
+        assertEquals("bb", map.get(keyB));
+        assertEquals(2, toHashMap(map).size());
+
+        map = map.remove(keyB).remove(keyC);
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void testRandomUpdates() throws Exception {
+        Random random = new Random(17);
+        Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+        PersistentMap<Integer, Integer> map = PersistentMap.empty();
+        for (int i = 0; i < 20000; i++) {
+            Integer key = random.nextInt(2000);
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                map = map.remove(key);
+            } else {
+                expected.put(key, i);
+                map = map.put(key, i);
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        assertEquals(expected, toHashMap(map));
+        for (Integer key : expected.keySet()) {
+            assertEquals(expected.get(key), map.get(key));
+        }
+    }
+
+    @Test
+    public void testChangedKeys() throws Exception {
+        PersistentMap<Object, Integer> base = PersistentMap.empty();
+        for (int i = 0; i < 1000; i++) {
+            base = base.put(i, i);
+        }
+        base = base.put(new CollidingKey("a"), 1).put(new CollidingKey("b"), 2);
+        assertEquals(Collections.emptySet(), base.getChangedKeys(base));
+
+        PersistentMap<Object, Integer> derived = base.put(5, 50).remove(7).put(2000, 2000).put(new CollidingKey("b"), 3);
+        Set<Object> expected = new HashSet<Object>();
+        expected.add(5);
+        expected.add(7);
+        expected.add(2000);
+        expected.add(new CollidingKey("b"));
+        assertEquals(expected, base.getChangedKeys(derived));
+        assertEquals(expected, derived.getChangedKeys(base));
+
+        // Equal values that are different instances are changes
+        PersistentMap<Object, Integer> replaced = base.put(500, new Integer(500));
+        assertEquals(Collections.singleton(500), base.getChangedKeys(replaced));
+
+        // Maps that do not share structure are compared by their entries
+        PersistentMap<Object, Integer> other = PersistentMap.empty();
+        for (Entry<Object, Integer> entry : base) {
+            other = other.put(entry.getKey(), entry.getValue());
+        }
+        assertEquals(Collections.emptySet(), base.getChangedKeys(other));
+        assertEquals(Collections.singleton(1), base.getChangedKeys(other.remove(1)));
+    }
+
+    private static <K, V> Map<K, V> toHashMap(PersistentMap<K, V> map) {
+        Map<K, V> result = new HashMap<K, V>();
+        for (Entry<K, V> entry : map) {
+            result.put(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    // Keys that all have the same hash code
+    private static class CollidingKey {
+
+        private final String name;
+
+        CollidingKey(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public int hashCode() {
+            return 42;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof CollidingKey && ((CollidingKey) obj).name.equals(name);
+        }
+    }
+}
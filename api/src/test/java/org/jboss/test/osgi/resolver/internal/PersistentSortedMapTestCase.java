@@ -0,0 +1,110 @@
+/*
+ * #%L
+ * JBossOSGi Resolver API
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.test.osgi.resolver.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.jboss.osgi.resolver.internal.PersistentSortedMap;
+import org.junit.Test;
+
+/**
+ * Unit tests for the {@link PersistentSortedMap} class
+ *
+ * @author agent@local
+ */
+public class PersistentSortedMapTestCase {
+
+    @Test
+    public void testPutAndRemove() throws Exception {
+        PersistentSortedMap<String, Integer> empty = PersistentSortedMap.empty();
+        PersistentSortedMap<String, Integer> map = empty.put("b", 2).put("a", 1).put("c", 3);
+        assertEquals(3, map.size());
+        assertEquals(Integer.valueOf(1), map.get("a"));
+        assertNull(map.get("d"));
+        assertNull(map.get(null));
+        assertEquals(Arrays.asList(1, 2, 3), toList(map.values()));
+
+        // Updates do not modify the map they are derived from
+        PersistentSortedMap<String, Integer> removed = map.remove("b").put("a", 4);
+        assertEquals(Arrays.asList(4, 3), toList(removed.values()));
+        assertEquals(Arrays.asList(1, 2, 3), toList(map.values()));
+        assertSame(removed, removed.remove("b"));
+        assertTrue(empty.isEmpty());
+        assertTrue(map.remove("a").remove("b").remove("c").isEmpty());
+    }
+
+    @Test
+    public void testRanges() throws Exception {
+        PersistentSortedMap<String, String> map = PersistentSortedMap.empty();
+        for (String key : new String[] { "org.foo", "org.bar", "org.foo.impl", "com.acme", "org.baz", "org.foo.api" }) {
+            map = map.put(key, key);
+        }
+        assertEquals(Arrays.asList("org.foo", "org.foo.api", "org.foo.impl"), toList(map.values("org.foo", true, "org.foo" + Character.MAX_VALUE, true)));
+        assertEquals(Arrays.asList("org.foo.api", "org.foo.impl"), toList(map.values("org.foo", false, null, false)));
+        assertEquals(Arrays.asList("com.acme", "org.bar"), toList(map.values(null, false, "org.bar", true)));
+        assertEquals(Arrays.asList("com.acme"), toList(map.values(null, false, "org.bar", false)));
+        assertEquals(Arrays.asList(), toList(map.values("x", true, null, false)));
+        assertEquals(Arrays.asList(), toList(map.values("org.c", true, "org.d", true)));
+    }
+
+    @Test
+    public void testRandomUpdates() throws Exception {
+        Random random = new Random(17);
+        TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+        PersistentSortedMap<Integer, Integer> map = PersistentSortedMap.empty();
+        for (int i = 0; i < 20000; i++) {
+            Integer key = random.nextInt(2000);
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                map = map.remove(key);
+            } else {
+                expected.put(key, i);
+                map = map.put(key, i);
+            }
+            if (i % 1000 == 0) {
+                int from = random.nextInt(2000);
+                int to = from + random.nextInt(500);
+                assertEquals(new ArrayList<Integer>(expected.subMap(from, false, to, true).values()), toList(map.values(from, false, to, true)));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        assertEquals(new ArrayList<Integer>(expected.values()), toList(map.values()));
+        for (Integer key : expected.keySet()) {
+            assertEquals(expected.get(key), map.get(key));
+        }
+    }
+
+    private static <V> List<V> toList(Iterable<V> values) {
+        List<V> result = new ArrayList<V>();
+        for (V value : values) {
+            result.add(value);
+        }
+        return result;
+    }
+}
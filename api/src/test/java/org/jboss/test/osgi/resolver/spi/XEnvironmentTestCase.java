@@ -20,20 +20,48 @@
 package org.jboss.test.osgi.resolver.spi;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.jboss.osgi.resolver.XCapability;
 import org.jboss.osgi.resolver.XEnvironment;
 import org.jboss.osgi.resolver.XRequirement;
 import org.jboss.osgi.resolver.XResource;
 import org.jboss.osgi.resolver.XResourceBuilder;
 import org.jboss.osgi.resolver.XResourceBuilderFactory;
+import org.jboss.osgi.resolver.spi.AbstractEnvironment;
+import org.jboss.osgi.resolver.spi.AbstractOverlayEnvironment;
+import org.jboss.osgi.resolver.spi.AbstractRequirement;
+import org.jboss.osgi.resolver.spi.AbstractResource;
+import org.jboss.osgi.resolver.spi.AbstractWire;
+import org.jboss.osgi.resolver.spi.AbstractWiring;
+import org.jboss.osgi.spi.AttachmentKey;
 import org.junit.Test;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.VersionRange;
+import org.osgi.framework.namespace.HostNamespace;
 import org.osgi.framework.namespace.IdentityNamespace;
 import org.osgi.framework.namespace.PackageNamespace;
 import org.osgi.resource.Capability;
 import org.osgi.resource.Requirement;
+import org.osgi.resource.Resource;
+import org.osgi.resource.Wire;
+import org.osgi.resource.Wiring;
 
 /**
  * Unit tests for the {@link org.osgi.service.resolver.Environment} class
@@ -71,4 +99,795 @@ public class XEnvironmentTestCase extends AbstractTestBase {
         assertSame(resourceB, providers.get(0).getResource());
         assertSame(resourceC, providers.get(1).getResource());
     }
+
+    @Test
+    public void testFindProvidersVersionRange() throws Exception {
+
+        XResourceBuilder<XResource> builderA = XResourceBuilderFactory.create();
+        builderA.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testA");
+        XRequirement reqA = builderA.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        reqA.getAttributes().put(PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE, "[2.0,3.0)");
+        XResource resourceA = builderA.getResource();
+
+        XResource[] exporters = new XResource[4];
+        String[] versions = new String[] { "3.0", "2.0", "1.0", "2.5" };
+        for (int i = 0; i < exporters.length; i++) {
+            XResourceBuilder<XResource> builder = XResourceBuilderFactory.create();
+            builder.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "test" + i);
+            XCapability cap = builder.addCapability(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+            cap.getAttributes().put(PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE, versions[i]);
+            exporters[i] = builder.getResource();
+        }
+
+        XEnvironment env = installResources(resourceA);
+        env.installResources(exporters);
+
+        AbstractRequirement req = (AbstractRequirement) resourceA.getRequirements(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        assertEquals(new VersionRange("[2.0,3.0)"), req.getVersionRange());
+
+        List<Capability> providers = env.findProviders(req);
+        assertEquals(2, providers.size());
+        assertSame(exporters[1], providers.get(0).getResource());
+        assertSame(exporters[3], providers.get(1).getResource());
+    }
+
+    @Test
+    public void testFindProvidersAttributeIndex() throws Exception {
+
+        XResourceBuilder<XResource> builderA = XResourceBuilderFactory.create();
+        builderA.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testA");
+        builderA.addRequirement("test.service", FrameworkUtil.createFilter("(&(objectClass=org.jboss.Foo)(ranking>=5))"));
+        XResource resourceA = builderA.getResource();
+
+        XResourceBuilder<XResource> builderB = XResourceBuilderFactory.create();
+        builderB.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testB");
+        XCapability capB = builderB.addCapability("test.service", "b");
+        capB.getAttributes().put("objectClass", Arrays.asList("org.jboss.Foo", "org.jboss.Bar"));
+        capB.getAttributes().put("ranking", Long.valueOf(10));
+        XResource resourceB = builderB.getResource();
+
+        XResourceBuilder<XResource> builderC = XResourceBuilderFactory.create();
+        builderC.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testC");
+        XCapability capC = builderC.addCapability("test.service", "c");
+        capC.getAttributes().put("objectClass", "org.jboss.Bar");
+        capC.getAttributes().put("ranking", Long.valueOf(10));
+        XResource resourceC = builderC.getResource();
+
+        XResourceBuilder<XResource> builderD = XResourceBuilderFactory.create();
+        builderD.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testD");
+        XCapability capD = builderD.addCapability("test.service", "d");
+        capD.getAttributes().put("objectClass", "org.jboss.Foo");
+        capD.getAttributes().put("ranking", Long.valueOf(1));
+        XResource resourceD = builderD.getResource();
+
+        AbstractEnvironment env = (AbstractEnvironment) installResources(resourceA, resourceB);
+        env.addAttributeIndex("test.service", "objectClass");
+        env.installResources(resourceC, resourceD);
+
+        Requirement req = resourceA.getRequirements("test.service").get(0);
+        List<Capability> providers = env.findProviders(req);
+        assertEquals(1, providers.size());
+        assertSame(capB, providers.get(0));
+
+        env.uninstallResources(resourceB);
+        assertEquals(0, env.findProviders(req).size());
+    }
+
+    @Test
+    public void testFindProvidersWildcard() throws Exception {
+
+        XResourceBuilder<XResource> builderA = XResourceBuilderFactory.create();
+        builderA.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testA");
+        builderA.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.*");
+        builderA.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, "*");
+        XResource resourceA = builderA.getResource();
+
+        XResourceBuilder<XResource> builderB = XResourceBuilderFactory.create();
+        builderB.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testB");
+        builderB.addCapability(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        builderB.addCapability(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo.bar");
+        XResource resourceB = builderB.getResource();
+
+        XResourceBuilder<XResource> builderC = XResourceBuilderFactory.create();
+        builderC.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testC");
+        builderC.addCapability(PackageNamespace.PACKAGE_NAMESPACE, "org.acme.foo");
+        XResource resourceC = builderC.getResource();
+
+        XEnvironment env = installResources(resourceA, resourceB, resourceC);
+
+        List<Requirement> reqs = resourceA.getRequirements(PackageNamespace.PACKAGE_NAMESPACE);
+        assertEquals(2, reqs.size());
+
+        List<Capability> providers = env.findProviders(reqs.get(0));
+        assertEquals(2, providers.size());
+        assertSame(resourceB, providers.get(0).getResource());
+        assertSame(resourceB, providers.get(1).getResource());
+
+        providers = env.findProviders(reqs.get(1));
+        assertEquals(3, providers.size());
+    }
+
+    @Test
+    public void testFindProvidersInvalidation() throws Exception {
+
+        XResourceBuilder<XResource> builderA = XResourceBuilderFactory.create();
+        builderA.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testA");
+        builderA.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        XResource resourceA = builderA.getResource();
+
+        XResourceBuilder<XResource> builderB = XResourceBuilderFactory.create();
+        builderB.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testB");
+        builderB.addCapability(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        builderB.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        XResource resourceB = builderB.getResource();
+
+        XResourceBuilder<XResource> builderC = XResourceBuilderFactory.create();
+        builderC.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testC");
+        builderC.addCapability(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        XResource resourceC = builderC.getResource();
+
+        XEnvironment env = installResources(resourceA, resourceB);
+        Requirement req = resourceA.getRequirements(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        assertEquals(1, env.findProviders(req).size());
+        assertEquals(1, env.findProviders(req).size());
+
+        env.installResources(resourceC);
+        List<Capability> providers = env.findProviders(req);
+        assertEquals(2, providers.size());
+
+        // B imports the package from C, which substitutes the export of B
+        Capability capC = providers.get(1);
+        Requirement reqB = resourceB.getRequirements(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        Wire wire = new AbstractWire(capC, reqB, resourceC, resourceB) {};
+        env.updateWiring(Collections.singletonMap((Resource) resourceB, Collections.singletonList(wire)));
+        assertTrue(((AbstractWiring) resourceB.getWiring(true)).isSubstitutedPackage("org.jboss.foo"));
+        providers = env.findProviders(req);
+        assertEquals(1, providers.size());
+        assertSame(resourceC, providers.get(0).getResource());
+
+        env.uninstallResources(resourceC);
+        assertEquals(0, env.findProviders(req).size());
+    }
+
+    @Test
+    public void testFindProvidersAfterRefresh() throws Exception {
+
+        XResourceBuilder<XResource> builderA = XResourceBuilderFactory.create();
+        builderA.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testA");
+        builderA.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        XResource resourceA = builderA.getResource();
+
+        XResourceBuilder<XResource> builderB = XResourceBuilderFactory.create();
+        builderB.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testB");
+        builderB.addCapability(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        builderB.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        XResource resourceB = builderB.getResource();
+
+        XResourceBuilder<XResource> builderC = XResourceBuilderFactory.create();
+        builderC.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testC");
+        builderC.addCapability(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        XResource resourceC = builderC.getResource();
+
+        XResourceBuilder<XResource> builderF = XResourceBuilderFactory.create();
+        builderF.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testF");
+        builderF.addCapability(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.bar");
+        builderF.addRequirement(HostNamespace.HOST_NAMESPACE, "testH");
+        XResource fragment = builderF.getResource();
+
+        XResourceBuilder<XResource> builderH = XResourceBuilderFactory.create();
+        builderH.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testH");
+        builderH.addCapability(HostNamespace.HOST_NAMESPACE, "testH");
+        builderH.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.bar");
+        XResource host = builderH.getResource();
+
+        XEnvironment env = installResources(resourceA, resourceB, resourceC, fragment, host);
+        Requirement req = resourceA.getRequirements(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        Requirement reqH = host.getRequirements(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        List<Capability> providers = env.findProviders(req);
+        assertEquals(2, providers.size());
+        assertEquals(1, env.findProviders(reqH).size());
+
+        // B imports the package from C and the host resolves, which hides the exports of B and F
+        Capability capC = resourceC.getCapabilities(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        Requirement reqB = resourceB.getRequirements(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        Wire wire = new AbstractWire(capC, reqB, resourceC, resourceB) {};
+        Map<Resource, List<Wire>> wiremap = new HashMap<Resource, List<Wire>>();
+        wiremap.put(resourceB, Collections.singletonList(wire));
+        wiremap.put(host, Collections.<Wire> emptyList());
+        env.updateWiring(wiremap);
+        assertEquals(1, env.findProviders(req).size());
+        assertEquals(0, env.findProviders(reqH).size());
+
+        // A refresh outside the environment makes them available again
+        resourceB.getWiringSupport().refresh();
+        host.getWiringSupport().refresh();
+        assertEquals(2, env.findProviders(req).size());
+        assertEquals(1, env.findProviders(reqH).size());
+    }
+
+    @Test
+    public void testCloneIsolation() throws Exception {
+
+        XResourceBuilder<XResource> builderA = XResourceBuilderFactory.create();
+        builderA.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testA");
+        builderA.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        XResource resourceA = builderA.getResource();
+
+        XResourceBuilder<XResource> builderB = XResourceBuilderFactory.create();
+        builderB.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testB");
+        builderB.addCapability(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        XResource resourceB = builderB.getResource();
+
+        XResourceBuilder<XResource> builderC = XResourceBuilderFactory.create();
+        builderC.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testC");
+        builderC.addCapability(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        XResource resourceC = builderC.getResource();
+
+        XResourceBuilder<XResource> builderD = XResourceBuilderFactory.create();
+        builderD.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testD");
+        builderD.addCapability(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        XResource resourceD = builderD.getResource();
+
+        XEnvironment env = installResources(resourceA, resourceB);
+        Requirement req = resourceA.getRequirements(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        assertEquals(1, env.findProviders(req).size());
+
+        XEnvironment clone = ((AbstractEnvironment) env).clone();
+        assertEquals(1, clone.findProviders(req).size());
+
+        clone.installResources(resourceC);
+        assertEquals(2, clone.findProviders(req).size());
+        assertEquals(1, env.findProviders(req).size());
+        Long idC = resourceC.getAttachment(XResource.RESOURCE_IDENTIFIER_KEY);
+        assertSame(resourceC, clone.getResourceById(idC));
+        assertNull(env.getResourceById(idC));
+
+        env.installResources(resourceD);
+        List<Capability> providers = env.findProviders(req);
+        assertEquals(2, providers.size());
+        assertSame(resourceD, providers.get(1).getResource());
+        providers = clone.findProviders(req);
+        assertEquals(2, providers.size());
+        assertSame(resourceC, providers.get(1).getResource());
+
+        clone.uninstallResources(resourceC);
+        assertEquals(1, clone.findProviders(req).size());
+        assertEquals(2, env.findProviders(req).size());
+    }
+
+    @Test
+    public void testOverlayEnvironment() throws Exception {
+
+        XResourceBuilder<XResource> builderA = XResourceBuilderFactory.create();
+        builderA.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testA");
+        builderA.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        XResource resourceA = builderA.getResource();
+
+        XResourceBuilder<XResource> builderB = XResourceBuilderFactory.create();
+        builderB.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testB");
+        builderB.addCapability(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        XResource resourceB = builderB.getResource();
+
+        XResourceBuilder<XResource> builderC = XResourceBuilderFactory.create();
+        builderC.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testC");
+        builderC.addCapability(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        XResource resourceC = builderC.getResource();
+
+        AbstractEnvironment base = (AbstractEnvironment) installResources(resourceB);
+        XEnvironment overlay = new AbstractOverlayEnvironment(base);
+        overlay.installResources(resourceA, resourceC);
+
+        Requirement req = resourceA.getRequirements(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        List<Capability> providers = overlay.findProviders(req);
+        assertEquals(2, providers.size());
+        assertSame(resourceB, providers.get(0).getResource());
+        assertSame(resourceC, providers.get(1).getResource());
+        assertEquals(1, base.findProviders(req).size());
+
+        Long idB = resourceB.getAttachment(XResource.RESOURCE_IDENTIFIER_KEY);
+        Long idC = resourceC.getAttachment(XResource.RESOURCE_IDENTIFIER_KEY);
+        assertTrue(idC > idB);
+        assertSame(resourceB, overlay.getResourceById(idB));
+        assertSame(resourceC, overlay.getResourceById(idC));
+        assertNull(base.getResourceById(idC));
+        assertEquals(3, countResources(overlay));
+        assertEquals(1, countResources(base));
+
+        // Uninstalling a base resource only hides it in the overlay
+        overlay.uninstallResources(resourceB);
+        providers = overlay.findProviders(req);
+        assertEquals(1, providers.size());
+        assertSame(resourceC, providers.get(0).getResource());
+        assertNull(overlay.getResourceById(idB));
+        assertSame(resourceB, base.getResourceById(idB));
+        assertEquals(XResource.State.INSTALLED, resourceB.getState());
+        assertEquals(2, countResources(overlay));
+
+        overlay.installResources(resourceB);
+        assertEquals(2, overlay.findProviders(req).size());
+    }
+
+    @Test
+    public void testOverlayWiring() throws Exception {
+
+        XResourceBuilder<XResource> builderA = XResourceBuilderFactory.create();
+        builderA.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testA");
+        builderA.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        XResource resourceA = builderA.getResource();
+
+        XResourceBuilder<XResource> builderB = XResourceBuilderFactory.create();
+        builderB.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testB");
+        builderB.addCapability(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        XResource resourceB = builderB.getResource();
+
+        XResourceBuilder<XResource> builderC = XResourceBuilderFactory.create();
+        builderC.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testC");
+        builderC.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        XResource resourceC = builderC.getResource();
+
+        XResourceBuilder<XResource> builderD = XResourceBuilderFactory.create();
+        builderD.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testD");
+        builderD.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        XResource resourceD = builderD.getResource();
+
+        AbstractEnvironment base = (AbstractEnvironment) installResources(resourceB, resourceD);
+        XEnvironment overlayA = new AbstractOverlayEnvironment(base);
+        overlayA.installResources(resourceA);
+        XEnvironment overlayC = new AbstractOverlayEnvironment(base);
+        overlayC.installResources(resourceC);
+
+        // Wire a resource of the overlay to an unresolved resource of the base
+        Capability cap = resourceB.getCapabilities(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        Requirement reqA = resourceA.getRequirements(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        Wire wireA = new AbstractWire(cap, reqA, resourceB, resourceA) {};
+        overlayA.updateWiring(Collections.singletonMap((Resource) resourceA, Collections.singletonList(wireA)));
+        Wiring wiringB = overlayA.getWirings().get(resourceB);
+        assertEquals(Collections.singletonList(wireA), wiringB.getProvidedResourceWires(null));
+        assertEquals(2, overlayA.getWirings().size());
+        assertNull(resourceB.getWiringSupport().getWiring(true));
+        assertEquals(0, base.getWirings().size());
+        assertNull(overlayC.getWirings().get(resourceB));
+
+        // Resolve the resource in the base and wire it in the other overlay
+        base.updateWiring(Collections.singletonMap((Resource) resourceB, Collections.<Wire> emptyList()));
+        Requirement reqC = resourceC.getRequirements(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        Wire wireC = new AbstractWire(cap, reqC, resourceB, resourceC) {};
+        overlayC.updateWiring(Collections.singletonMap((Resource) resourceC, Collections.singletonList(wireC)));
+        assertEquals(Collections.singletonList(wireC), overlayC.getWirings().get(resourceB).getProvidedResourceWires(null));
+        assertEquals(0, base.getWirings().get(resourceB).getProvidedResourceWires(null).size());
+        assertSame(wiringB, overlayA.getWirings().get(resourceB));
+        assertEquals(1, base.getWirings().size());
+
+        // The overlay wiring extends the current wiring of the base
+        Requirement reqD = resourceD.getRequirements(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        Wire wireD = new AbstractWire(cap, reqD, resourceB, resourceD) {};
+        base.updateWiring(Collections.singletonMap((Resource) resourceD, Collections.singletonList(wireD)));
+        assertEquals(Arrays.asList(wireD, wireA), wiringB.getProvidedResourceWires(null));
+        assertEquals(2, base.getWirings().size());
+        assertEquals(3, overlayA.getWirings().size());
+
+        // The overlay wiring is dropped with the resource of the base
+        base.uninstallResources(resourceB);
+        assertNull(overlayA.getWirings().get(resourceB));
+        assertEquals(Collections.singletonList(wireA), wiringB.getProvidedResourceWires(null));
+        assertEquals(2, overlayA.getWirings().size());
+        assertEquals(countEntries(overlayA.getWirings()), overlayA.getWirings().size());
+        overlayA.updateWiring(Collections.<Resource, List<Wire>> emptyMap());
+        assertEquals(2, overlayA.getWirings().size());
+    }
+
+    private int countEntries(Map<Resource, Wiring> wirings) {
+        int count = 0;
+        for (Iterator<Map.Entry<Resource, Wiring>> it = wirings.entrySet().iterator(); it.hasNext(); it.next()) {
+            count++;
+        }
+        return count;
+    }
+
+    private int countResources(XEnvironment env) {
+        int count = 0;
+        for (Iterator<XResource> itres = env.getResources(null); itres.hasNext(); itres.next()) {
+            count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void testFragmentIndex() throws Exception {
+
+        XResourceBuilder<XResource> builderA = XResourceBuilderFactory.create();
+        builderA.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testA");
+        builderA.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        XResource resourceA = builderA.getResource();
+
+        XResourceBuilder<XResource> builderF = XResourceBuilderFactory.create();
+        builderF.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testF");
+        builderF.addCapability(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        builderF.addRequirement(HostNamespace.HOST_NAMESPACE, "testH");
+        XResource fragment = builderF.getResource();
+
+        XResourceBuilder<XResource> builderH = XResourceBuilderFactory.create();
+        builderH.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testH");
+        builderH.addCapability(HostNamespace.HOST_NAMESPACE, "testH");
+        XResource host = builderH.getResource();
+
+        AbstractEnvironment env = (AbstractEnvironment) installResources(resourceA, fragment);
+        Requirement req = resourceA.getRequirements(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        assertEquals(0, env.findProviders(req).size());
+
+        env.installResources(host);
+        Capability hostcap = host.getCapabilities(HostNamespace.HOST_NAMESPACE).get(0);
+        assertEquals(Collections.singletonList(fragment), env.getAttachableFragments(hostcap));
+        assertEquals(1, env.findProviders(req).size());
+
+        // A resolved host cannot take the fragment any more
+        env.updateWiring(Collections.singletonMap((Resource) host, Collections.<Wire> emptyList()));
+        assertEquals(0, env.findProviders(req).size());
+
+        env.uninstallResources(fragment);
+        assertEquals(0, env.getAttachableFragments(hostcap).size());
+    }
+
+    @Test
+    public void testBulkInstall() throws Exception {
+
+        XResourceBuilder<XResource> builderA = XResourceBuilderFactory.create();
+        builderA.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testA");
+        builderA.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        XResource resourceA = builderA.getResource();
+
+        XResource[] resources = new XResource[500];
+        for (int i = 0; i < resources.length; i++) {
+            XResourceBuilder<XResource> builder = XResourceBuilderFactory.create();
+            builder.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "test" + i);
+            builder.addCapability(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+            builder.addCapability(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.bar" + i);
+            resources[i] = builder.getResource();
+        }
+
+        AbstractEnvironment env = (AbstractEnvironment) installResources(resourceA);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            env.installResources(executor, resources);
+        } finally {
+            executor.shutdown();
+        }
+
+        // The identifiers are a contiguous block in batch order
+        Long first = resources[0].getAttachment(XResource.RESOURCE_IDENTIFIER_KEY);
+        for (int i = 0; i < resources.length; i++) {
+            assertEquals(Long.valueOf(first + i), resources[i].getAttachment(XResource.RESOURCE_IDENTIFIER_KEY));
+            assertSame(resources[i], env.getResourceById(first + i));
+        }
+
+        // The providers are in installation order
+        Requirement req = resourceA.getRequirements(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        List<Capability> providers = env.findProviders(req);
+        assertEquals(resources.length, providers.size());
+        for (int i = 0; i < resources.length; i++) {
+            assertSame(resources[i], providers.get(i).getResource());
+        }
+
+        try {
+            env.installResources(resources[0]);
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testInstallFailure() throws Exception {
+
+        XResourceBuilder<XResource> builderA = XResourceBuilderFactory.create();
+        builderA.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testA");
+        builderA.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        XResource resourceA = builderA.getResource();
+
+        XResourceBuilder<XResource> builderB = XResourceBuilderFactory.create();
+        builderB.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testB");
+        builderB.addCapability(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        XResource resourceB = builderB.getResource();
+        resourceB.putAttachment(XResource.RESOURCE_IDENTIFIER_KEY, 1000L);
+
+        // A resource that fails after the resources before it were added to the indexes
+        XResourceBuilderFactory<XResource> factory = new XResourceBuilderFactory<XResource>() {
+            @Override
+            public XResource createResource() {
+                return new AbstractResource() {
+                    @Override
+                    public <T> T putAttachment(AttachmentKey<T> key, T value) {
+                        if (key == XResource.RESOURCE_IDENTIFIER_KEY)
+                            throw new IllegalStateException("Cannot attach identifier");
+                        return super.putAttachment(key, value);
+                    }
+                };
+            }
+        };
+        XResourceBuilder<XResource> builderC = XResourceBuilderFactory.create(factory);
+        builderC.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testC");
+        builderC.addCapability(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        XResource resourceC = builderC.getResource();
+
+        XEnvironment env = installResources(resourceA);
+        Requirement req = resourceA.getRequirements(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        assertEquals(0, env.findProviders(req).size());
+        try {
+            env.installResources(resourceB, resourceC);
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+
+        // Nothing of the failed batch is visible and the resources are unchanged
+        assertEquals(0, env.findProviders(req).size());
+        assertNull(env.getResourceById(1000L));
+        assertEquals(Long.valueOf(1000L), resourceB.getAttachment(XResource.RESOURCE_IDENTIFIER_KEY));
+        assertEquals(XResource.State.UNINSTALLED, resourceB.getState());
+        assertEquals(XResource.State.UNINSTALLED, resourceC.getState());
+        Iterator<XResource> itres = env.getResources(null);
+        assertTrue(itres.hasNext());
+        assertSame(resourceA, itres.next());
+        assertTrue(!itres.hasNext());
+
+        // The batch can be installed once the failing resource is left out
+        env.installResources(resourceB);
+        assertEquals(1, env.findProviders(req).size());
+        assertSame(resourceB, env.getResourceById(1000L));
+    }
+
+    @Test
+    public void testBatchUninstall() throws Exception {
+
+        XResourceBuilder<XResource> builderA = XResourceBuilderFactory.create();
+        builderA.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testA");
+        builderA.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        XResource resourceA = builderA.getResource();
+
+        List<XResource> resources = new ArrayList<XResource>();
+        for (int i = 0; i < 50; i++) {
+            XResourceBuilder<XResource> builder = XResourceBuilderFactory.create();
+            builder.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "test" + i);
+            builder.addCapability(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+            builder.addCapability(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.bar" + i);
+            resources.add(builder.getResource());
+        }
+
+        AbstractEnvironment env = (AbstractEnvironment) installResources(resourceA);
+        env.installResources(resources.toArray(new XResource[resources.size()]));
+
+        // A is wired to the first resource
+        Requirement req = resourceA.getRequirements(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        List<Capability> providers = env.findProviders(req);
+        assertEquals(50, providers.size());
+        Wire wire = new AbstractWire(providers.get(0), req, resources.get(0), resourceA) {};
+        env.updateWiring(Collections.singletonMap((Resource) resourceA, Collections.singletonList(wire)));
+
+        List<XResource> batch = new ArrayList<XResource>(resources.subList(0, 49));
+        batch.add(resourceA);
+        assertTrue(env.uninstallResources(batch) >= 0);
+
+        providers = env.findProviders(req);
+        assertEquals(1, providers.size());
+        assertSame(resources.get(49), providers.get(0).getResource());
+        assertNull(resourceA.getWiring(false));
+        assertNull(resources.get(0).getWiring(false));
+        assertEquals(XResource.State.UNINSTALLED, resources.get(0).getState());
+        assertEquals(1, countResources(env));
+
+        // Uninstalled resources are ignored
+        assertTrue(env.uninstallResources(batch) >= 0);
+        assertEquals(1, countResources(env));
+    }
+
+    @Test
+    public void testWiringsView() throws Exception {
+
+        XResourceBuilder<XResource> builderA = XResourceBuilderFactory.create();
+        builderA.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testA");
+        builderA.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        XResource resourceA = builderA.getResource();
+
+        XResourceBuilder<XResource> builderB = XResourceBuilderFactory.create();
+        builderB.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testB");
+        builderB.addCapability(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        XResource resourceB = builderB.getResource();
+
+        XEnvironment env = installResources(resourceA, resourceB);
+        Map<Resource, Wiring> wirings = env.getWirings();
+        assertEquals(0, wirings.size());
+
+        Requirement req = resourceA.getRequirements(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        Capability cap = env.findProviders(req).get(0);
+        Wire wire = new AbstractWire(cap, req, resourceB, resourceA) {};
+        Map<Resource, List<Wire>> wiremap = Collections.singletonMap((Resource) resourceA, Collections.singletonList(wire));
+        Map<Resource, Wiring> delta = env.updateWiring(wiremap);
+
+        assertEquals(2, wirings.size());
+        assertSame(delta.get(resourceA), wirings.get(resourceA));
+        assertSame(resourceB, wirings.get(resourceB).getResource());
+
+        env.uninstallResources(resourceA);
+        assertEquals(1, wirings.size());
+        assertNull(wirings.get(resourceA));
+    }
+
+    @Test
+    public void testWiringsViewTracking() throws Exception {
+
+        XResourceBuilder<XResource> builderA = XResourceBuilderFactory.create();
+        builderA.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testA");
+        builderA.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        XResource resourceA = builderA.getResource();
+
+        XResourceBuilder<XResource> builderB = XResourceBuilderFactory.create();
+        builderB.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testB");
+        builderB.addCapability(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        XResource resourceB = builderB.getResource();
+
+        // B is provided by another environment
+        XEnvironment other = new AbstractEnvironment();
+        other.installResources(resourceB);
+        XEnvironment env = installResources(resourceA);
+        XEnvironment clone = ((AbstractEnvironment) env).clone();
+        Map<Resource, Wiring> wirings = env.getWirings();
+
+        Requirement req = resourceA.getRequirements(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        Capability cap = resourceB.getCapabilities(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        Wire wire = new AbstractWire(cap, req, resourceB, resourceA) {};
+        env.updateWiring(Collections.singletonMap((Resource) resourceA, Collections.singletonList(wire)));
+        assertEquals(1, wirings.size());
+        assertEquals(Collections.singleton(resourceA), wirings.keySet());
+        assertNull(wirings.get(resourceB));
+        assertSame(resourceB.getWiringSupport().getWiring(true), other.getWirings().get(resourceB));
+
+        // The clone sees the wiring change of the shared resource
+        assertEquals(1, clone.getWirings().size());
+
+        // Changes outside of the environment are tracked
+        resourceA.getWiringSupport().refresh();
+        assertEquals(0, wirings.size());
+        assertTrue(wirings.isEmpty());
+        assertEquals(0, clone.getWirings().size());
+
+        env.updateWiring(Collections.singletonMap((Resource) resourceA, Collections.<Wire> emptyList()));
+        assertEquals(1, wirings.size());
+        resourceA.getWiringSupport().makeUneffective();
+        assertEquals(0, wirings.size());
+        assertEquals(0, wirings.entrySet().size());
+    }
+
+    @Test
+    public void testConcurrentFindProviders() throws Exception {
+
+        XResourceBuilder<XResource> builderA = XResourceBuilderFactory.create();
+        builderA.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testA");
+        builderA.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        XResource resourceA = builderA.getResource();
+
+        XResourceBuilder<XResource> builderB = XResourceBuilderFactory.create();
+        builderB.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testB");
+        builderB.addCapability(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.foo");
+        XResource resourceB = builderB.getResource();
+
+        final XEnvironment env = installResources(resourceA, resourceB);
+        final Requirement req = resourceA.getRequirements(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        final AtomicBoolean done = new AtomicBoolean();
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Integer>> readers = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < 3; i++) {
+                readers.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        int count = 0;
+                        while (!done.get() || count == 0) {
+                            List<Capability> providers = env.findProviders(req);
+                            assertEquals(1, providers.size());
+                            count++;
+                        }
+                        return count;
+                    }
+                }));
+            }
+            Future<?> writer = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    try {
+                        for (int i = 0; i < 200; i++) {
+                            XResourceBuilder<XResource> builder = XResourceBuilderFactory.create();
+                            builder.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "test" + i);
+                            builder.addCapability(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.bar");
+                            XResource res = builder.getResource();
+                            env.installResources(res);
+                            if (i % 2 == 0) {
+                                env.uninstallResources(res);
+                            }
+                        }
+                    } finally {
+                        done.set(true);
+                    }
+                    return null;
+                }
+            });
+            writer.get();
+            for (Future<Integer> reader : readers) {
+                assertTrue(reader.get() > 0);
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        XResourceBuilder<XResource> builderC = XResourceBuilderFactory.create();
+        builderC.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.bar");
+        builderC.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testC");
+        XResource resourceC = builderC.getResource();
+        Requirement barreq = resourceC.getRequirements(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        assertEquals(100, env.findProviders(barreq).size());
+    }
+
+    @Test
+    public void testConcurrentFindProvidersCache() throws Exception {
+
+        XResourceBuilder<XResource> builderA = XResourceBuilderFactory.create();
+        builderA.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "testA");
+        builderA.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.bar");
+        builderA.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, "org.jboss.*");
+        XResource resourceA = builderA.getResource();
+
+        final XEnvironment env = installResources(resourceA);
+        final Requirement barreq = resourceA.getRequirements(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        final Requirement wildreq = resourceA.getRequirements(PackageNamespace.PACKAGE_NAMESPACE).get(1);
+        final AtomicBoolean done = new AtomicBoolean();
+
+        // Readers fill the provider cache while the writer changes the providers, the writer
+        // must always see the result of its last change
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Integer>> readers = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < 3; i++) {
+                readers.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        int count = 0;
+                        while (!done.get() || count == 0) {
+                            assertTrue(env.findProviders(barreq).size() <= 1);
+                            env.findProviders(wildreq);
+                            count++;
+                        }
+                        return count;
+                    }
+                }));
+            }
+            Future<?> writer = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    try {
+                        for (int i = 0; i < 500; i++) {
+                            XResourceBuilder<XResource> builder = XResourceBuilderFactory.create();
+                            builder.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "test" + i);
+                            builder.addCapability(PackageNamespace.PACKAGE_NAMESPACE, i % 3 == 0 ? "org.jboss.bar" : "org.jboss.bar" + i);
+                            XResource res = builder.getResource();
+                            env.installResources(res);
+                            assertEquals(i % 3 == 0 ? 1 : 0, env.findProviders(barreq).size());
+                            assertEquals(1, env.findProviders(wildreq).size());
+                            env.uninstallResources(res);
+                            assertEquals(0, env.findProviders(barreq).size());
+                            assertEquals(0, env.findProviders(wildreq).size());
+                        }
+                    } finally {
+                        done.set(true);
+                    }
+                    return null;
+                }
+            });
+            writer.get();
+            for (Future<Integer> reader : readers) {
+                assertTrue(reader.get() > 0);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
 }
@@ -20,6 +20,8 @@ package org.jboss.test.osgi.resolver.spi;
  */
 
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 
 import org.jboss.modules.ModuleIdentifier;
@@ -33,6 +35,10 @@ import org.jboss.osgi.resolver.XRequirement;
 import org.jboss.osgi.resolver.XResource;
 import org.jboss.osgi.resolver.XResourceBuilder;
 import org.jboss.osgi.resolver.XResourceBuilderFactory;
+import org.jboss.osgi.resolver.spi.AbstractCapability;
+import org.jboss.osgi.resolver.spi.AbstractEnvironment;
+import org.jboss.osgi.resolver.spi.AbstractRequirement;
+import org.jboss.osgi.resolver.spi.AbstractResource;
 import org.jboss.osgi.resolver.spi.AbstractResourceBuilder;
 import org.junit.Assert;
 import org.junit.Test;
@@ -89,6 +95,93 @@ public class XResourceBuilderTestCase extends AbstractTestBase {
         } catch (UnsupportedOperationException ex) {
             // expected
         }
+        Assert.assertSame(icap.getAttributes(), icap.getAttributes());
+        Assert.assertSame(icap.getDirectives(), icap.getDirectives());
+        Assert.assertEquals(icap.getAttributes(), new HashMap<String, Object>(icap.getAttributes()));
+
+        // A mutable resource gets its mutable maps back
+        res.setMutable(true);
+        icap.getAttributes().put("other", "value");
+        res.setMutable(false);
+        Assert.assertEquals("value", icap.getAttribute("other"));
+        Assert.assertEquals("meta", icap.getAttribute(BundleNamespace.CAPABILITY_EFFECTIVE_DIRECTIVE));
+    }
+
+    @Test
+    public void testSharedValues() throws Exception {
+        OSGiMetaDataBuilder builder = OSGiMetaDataBuilder.createBuilder("test1");
+        builder.addImportPackages("org.acme.foo;version=\"[1.0,2.0)\"");
+        XResource resA = XResourceBuilderFactory.create().loadFrom(builder.getOSGiMetaData()).getResource();
+        builder = OSGiMetaDataBuilder.createBuilder("test2");
+        builder.addImportPackages("org.acme.foo;version=\"[1.0,2.0)\"");
+        XResource resB = XResourceBuilderFactory.create().loadFrom(builder.getOSGiMetaData()).getResource();
+
+        AbstractRequirement reqA = (AbstractRequirement) resA.getRequirements(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        AbstractRequirement reqB = (AbstractRequirement) resB.getRequirements(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        Assert.assertEquals("org.acme.foo", reqA.getPackageName());
+        Assert.assertSame(reqA.getPackageName(), reqB.getPackageName());
+        Assert.assertSame(reqA.getVersionRange(), reqA.getVersionRange());
+        Assert.assertSame(reqA.getVersionRange(), reqB.getVersionRange());
+        Assert.assertSame(reqA.getDirective(Constants.FILTER_DIRECTIVE), reqB.getDirective(Constants.FILTER_DIRECTIVE));
+    }
+
+    @Test
+    public void testSharedValuesPerEnvironment() throws Exception {
+        AbstractEnvironment envA = new AbstractEnvironment();
+        AbstractEnvironment envB = new AbstractEnvironment();
+        AbstractEnvironment cloneA = (AbstractEnvironment) envA.clone();
+        XResource resA = createImporter(envA, "test1");
+        XResource resC = createImporter(cloneA, "test2");
+        XResource resB = createImporter(envB, "test3");
+
+        AbstractRequirement reqA = (AbstractRequirement) resA.getRequirements(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        AbstractRequirement reqB = (AbstractRequirement) resB.getRequirements(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        AbstractRequirement reqC = (AbstractRequirement) resC.getRequirements(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        Assert.assertSame(reqA.getVersionRange(), reqC.getVersionRange());
+        Assert.assertEquals(reqA.getVersionRange(), reqB.getVersionRange());
+        Assert.assertNotSame(reqA.getVersionRange(), reqB.getVersionRange());
+    }
+
+    private XResource createImporter(AbstractEnvironment env, String symbolicName) throws Exception {
+        OSGiMetaDataBuilder builder = OSGiMetaDataBuilder.createBuilder(symbolicName);
+        builder.addImportPackages("org.acme.foo;version=\"[1.0,2.0)\"");
+        XResourceBuilder<XResource> resbuilder = env.createResourceBuilder(new XResourceBuilderFactory<XResource>());
+        return resbuilder.loadFrom(builder.getOSGiMetaData()).getResource();
+    }
+
+    @Test
+    public void testUsesDirective() throws Exception {
+        OSGiMetaDataBuilder builder = OSGiMetaDataBuilder.createBuilder("test1");
+        builder.addExportPackages("org.acme.foo;uses:=\"org.acme.bar, org.acme.baz\"", "org.acme.bar");
+        XResource resource = XResourceBuilderFactory.create().loadFrom(builder.getOSGiMetaData()).getResource();
+        List<Capability> caps = resource.getCapabilities(PackageNamespace.PACKAGE_NAMESPACE);
+        AbstractCapability capA = (AbstractCapability) caps.get(0);
+        AbstractCapability capB = (AbstractCapability) caps.get(1);
+        Assert.assertEquals(Arrays.asList("org.acme.bar", "org.acme.baz"), capA.getUses());
+        Assert.assertSame(capA.getUses(), capA.getUses());
+        Assert.assertTrue(capB.getUses().isEmpty());
+        try {
+            capA.getUses().add("org.acme.other");
+            Assert.fail("UnsupportedOperationException expected");
+        } catch (UnsupportedOperationException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testResourceType() throws Exception {
+        XResourceBuilder<XResource> builder = XResourceBuilderFactory.create();
+        XCapability icap = builder.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "test1");
+        icap.getAttributes().put(IdentityNamespace.CAPABILITY_TYPE_ATTRIBUTE, IdentityNamespace.TYPE_FRAGMENT);
+        AbstractResource res = (AbstractResource) builder.getResource();
+        Assert.assertEquals(IdentityNamespace.TYPE_FRAGMENT, res.getType());
+        Assert.assertTrue(res.isFragment());
+
+        builder = XResourceBuilderFactory.create();
+        builder.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "test2");
+        res = (AbstractResource) builder.getResource();
+        Assert.assertEquals(IdentityNamespace.TYPE_UNKNOWN, res.getType());
+        Assert.assertFalse(res.isFragment());
     }
 
     @Test
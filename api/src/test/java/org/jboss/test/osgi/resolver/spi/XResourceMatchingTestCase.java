@@ -19,6 +19,10 @@
  */
 package org.jboss.test.osgi.resolver.spi;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import org.jboss.osgi.resolver.XCapability;
 import org.jboss.osgi.resolver.XRequirement;
 import org.jboss.osgi.resolver.XResource;
@@ -26,10 +30,13 @@ import org.jboss.osgi.resolver.XResourceBuilder;
 import org.jboss.osgi.resolver.XResourceBuilderFactory;
 import org.junit.Assert;
 import org.junit.Test;
+import org.osgi.framework.Constants;
 import org.osgi.framework.Filter;
 import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.Version;
 import org.osgi.framework.namespace.BundleNamespace;
 import org.osgi.framework.namespace.IdentityNamespace;
+import org.osgi.framework.namespace.PackageNamespace;
 
 /**
  * Unit tests for resource matching
@@ -70,4 +77,106 @@ public class XResourceMatchingTestCase extends AbstractTestBase {
 
         Assert.assertTrue("Match", req.matches(cap));
     }
+
+    @Test
+    public void testCompiledFilterMatching() throws Exception {
+        List<XCapability> caps = new ArrayList<XCapability>();
+        caps.add(createCapability("org.slf4j", Version.parseVersion("1.7.2"), null));
+        caps.add(createCapability("org.slf4j", Version.parseVersion("2.0.0"), null));
+        caps.add(createCapability("org.slf4j.impl", Version.parseVersion("1.0"), "org.slf4j.api"));
+        caps.add(createCapability("org.slf4j", "1.6.0", null));
+        XCapability cap = createCapability("javax.servlet", Version.parseVersion("3.0"), null);
+        cap.getAttributes().put("count", Long.valueOf(5));
+        cap.getAttributes().put("tags", Arrays.asList("a", "b"));
+        caps.add(cap);
+
+        String[] filters = new String[] {
+                "(&(osgi.wiring.package=org.slf4j)(version>=1.6.0)(!(version>=2.0.0)))",
+                "(&(osgi.wiring.package=org.slf4j*)(version>=1.0))",
+                "(|(osgi.wiring.package=javax.*)(bundle-symbolic-name=org.slf4j.api))",
+                "(osgi.wiring.package~=ORG.SLF4J)",
+                "(osgi.wiring.package=*slf4j*impl)",
+                "(version<=1.7.2)",
+                "(version=1.7.2)",
+                "(version=abc)",
+                "(count>=3)",
+                "(tags=b)",
+                "(bundle-symbolic-name=*)"
+        };
+        for (String filterspec : filters) {
+            Filter filter = FrameworkUtil.createFilter(filterspec);
+            XResourceBuilder<XResource> rbuilder = XResourceBuilderFactory.create();
+            rbuilder.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "requirer");
+            XRequirement req = rbuilder.addRequirement("test.namespace", filter);
+            rbuilder.getResource();
+            for (XCapability aux : caps) {
+                boolean expected = filter.matches(aux.getAttributes());
+                Assert.assertEquals(filterspec + " " + aux.getAttributes(), expected, req.matches(aux));
+            }
+        }
+    }
+
+    @Test
+    public void testCompiledSubstringMatching() throws Exception {
+        String[][] cases = new String[][] {
+                { "a*b", "ab", "true" },
+                { "*.impl", "com.acme.impl", "true" },
+                { "*foo", "foo", "true" },
+                { "*slf4j*impl", "org.slf4j.impl", "true" },
+                { "a*b*c", "abc", "true" },
+                { "com.acme.*", "com.acme.foo", "true" },
+                { "a*b", "acb", "true" },
+                { "a*b", "abc", "false" },
+                { "*.impl", "com.acme.api", "false" },
+                { "ab*ba", "aba", "false" }
+        };
+        for (String[] aux : cases) {
+            Filter filter = FrameworkUtil.createFilter("(osgi.wiring.package=" + aux[0] + ")");
+            XResourceBuilder<XResource> rbuilder = XResourceBuilderFactory.create();
+            rbuilder.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "requirer");
+            XRequirement req = rbuilder.addRequirement("test.namespace", filter);
+            rbuilder.getResource();
+            XCapability cap = createCapability(aux[1], Version.emptyVersion, null);
+            Assert.assertEquals(aux[0] + " " + aux[1], Boolean.parseBoolean(aux[2]), req.matches(cap));
+        }
+    }
+
+    @Test
+    public void testMandatoryAttributes() throws Exception {
+        XResourceBuilder<XResource> cbuilder = XResourceBuilderFactory.create();
+        cbuilder.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "provider");
+        XCapability cap = cbuilder.addCapability(PackageNamespace.PACKAGE_NAMESPACE, "org.acme.foo");
+        cap.getAttributes().put("security", "ok");
+        cap.getAttributes().put("vendor", "acme");
+        cap.getDirectives().put(Constants.MANDATORY_DIRECTIVE, "security, vendor");
+        cbuilder.getResource();
+
+        String[] filters = new String[] {
+                "(osgi.wiring.package=org.acme.foo)",
+                "(&(osgi.wiring.package=org.acme.foo)(security=ok))",
+                "(&(osgi.wiring.package=org.acme.foo)(securityLevel=ok)(vendorName=acme))",
+                "(&(osgi.wiring.package=org.acme.foo)(security=ok)(vendor=acme))",
+                "(&(osgi.wiring.package=org.acme.foo)(security=ok)(!(vendor=other)))"
+        };
+        boolean[] expected = new boolean[] { false, false, false, true, true };
+        for (int i = 0; i < filters.length; i++) {
+            XResourceBuilder<XResource> rbuilder = XResourceBuilderFactory.create();
+            rbuilder.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "requirer" + i);
+            XRequirement req = rbuilder.addRequirement(PackageNamespace.PACKAGE_NAMESPACE, FrameworkUtil.createFilter(filters[i]));
+            rbuilder.getResource();
+            Assert.assertEquals(filters[i], expected[i], req.matches(cap));
+        }
+    }
+
+    private XCapability createCapability(String pkgname, Object version, String bsname) {
+        XResourceBuilder<XResource> cbuilder = XResourceBuilderFactory.create();
+        cbuilder.addCapability(IdentityNamespace.IDENTITY_NAMESPACE, "provider");
+        XCapability cap = cbuilder.addCapability("test.namespace", "test");
+        cap.getAttributes().put("osgi.wiring.package", pkgname);
+        cap.getAttributes().put("version", version);
+        if (bsname != null) {
+            cap.getAttributes().put("bundle-symbolic-name", bsname);
+        }
+        return cap;
+    }
 }
@@ -19,9 +19,11 @@
 package org.apache.felix.resolver;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -29,6 +31,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
+import org.jboss.osgi.resolver.internal.PersistentMap;
 import org.osgi.framework.Version;
 import org.osgi.framework.namespace.HostNamespace;
 import org.osgi.framework.namespace.PackageNamespace;
@@ -49,9 +52,9 @@ class Candidates
 
     private final Set<Resource> m_mandatoryResources;
     // Maps a capability to requirements that match it.
-    private final Map<Capability, Set<Requirement>> m_dependentMap;
+    private PersistentMap<Capability, Set<Requirement>> m_dependentMap;
     // Maps a requirement to the capability it matches.
-    private final Map<Requirement, List<Capability>> m_candidateMap;
+    private PersistentMap<Requirement, List<Capability>> m_candidateMap;
     // Maps a bundle revision to its associated wrapped revision; this only happens
     // when a revision being resolved has fragments to attach to it.
     private final Map<Resource, WrappedResource> m_allWrappedHosts;
@@ -60,6 +63,16 @@ class Candidates
 
     // Flag to signal if fragments are present in the candidate map.
     private boolean m_fragmentsPresent = false;
+    // The candidate lists and dependent sets that may be modified in place, or null
+    // if all of them may. After copy() both objects share every list and set, so
+    // each object copies a shared value the first time it modifies it.
+    private Map<Object, Boolean> m_owned;
+    // Maps each requirement whose first candidates were removed to the index of
+    // its first remaining candidate in the original list, or null if candidates
+    // were removed otherwise. Permutations derived from the same candidates by
+    // removing first candidates are equal if they map the same indexes.
+    private PersistentMap<Requirement, Integer> m_choices;
+    private int m_choicesHash;
 
     /**
      * Private copy constructor used by the copy() method.
@@ -67,13 +80,16 @@ class Candidates
      * @param candidateMap the requirement candidate map.
      * @param hostFragments the fragment map.
      * @param wrappedHosts the wrapped hosts map.
+     * @param choices the candidate indexes of the permutated requirements.
+     * @param choicesHash the hash code of the candidate indexes.
     **/
     private Candidates(
         Set<Resource> mandatoryResources,
-        Map<Capability, Set<Requirement>> dependentMap,
-        Map<Requirement, List<Capability>> candidateMap,
+        PersistentMap<Capability, Set<Requirement>> dependentMap,
+        PersistentMap<Requirement, List<Capability>> candidateMap,
         Map<Resource, WrappedResource> wrappedHosts, Map<Resource, Object> populateResultCache,
-        boolean fragmentsPresent)
+        boolean fragmentsPresent, PersistentMap<Requirement, Integer> choices,
+        int choicesHash)
     {
         m_mandatoryResources = mandatoryResources;
         m_dependentMap = dependentMap;
@@ -81,6 +97,9 @@ class Candidates
         m_allWrappedHosts = wrappedHosts;
         m_populateResultCache = populateResultCache;
         m_fragmentsPresent = fragmentsPresent;
+        m_owned = new IdentityHashMap<Object, Boolean>();
+        m_choices = choices;
+        m_choicesHash = choicesHash;
     }
 
     /**
@@ -89,10 +108,11 @@ class Candidates
     public Candidates()
     {
         m_mandatoryResources = new HashSet<Resource>();
-        m_dependentMap = new HashMap<Capability, Set<Requirement>>();
-        m_candidateMap = new HashMap<Requirement, List<Capability>>();
+        m_dependentMap = PersistentMap.empty();
+        m_candidateMap = PersistentMap.empty();
         m_allWrappedHosts = new HashMap<Resource, WrappedResource>();
         m_populateResultCache = new HashMap<Resource, Object>();
+        m_choices = PersistentMap.empty();
     }
 
     /**
@@ -549,7 +569,7 @@ class Candidates
         }
 
         // Record the candidates.
-        m_candidateMap.put(req, candidates);
+        m_candidateMap = m_candidateMap.put(req, own(candidates));
     }
 
     /**
@@ -589,6 +609,124 @@ class Candidates
         return m_candidateMap.get(req);
     }
 
+    /**
+     * Gets the requirements whose candidate choice differs in the specified
+     * permutation; the choice is the first candidate, or all candidates for
+     * a multiple cardinality requirement. Permutations share every candidate
+     * list they did not modify, so only the modified lists are compared.
+     * @param permutation the permutation to compare with.
+     * @return the requirements whose candidate choice differs.
+    **/
+    public Set<Requirement> getChangedRequirements(Candidates permutation)
+    {
+        Set<Requirement> changed = m_candidateMap.getChangedKeys(permutation.m_candidateMap);
+        for (Iterator<Requirement> it = changed.iterator(); it.hasNext();)
+        {
+            Requirement req = it.next();
+            List<Capability> candidates = m_candidateMap.get(req);
+            List<Capability> other = permutation.m_candidateMap.get(req);
+            if ((candidates == null) || (other == null)
+                || candidates.isEmpty() || other.isEmpty())
+            {
+                continue;
+            }
+            if (Util.isMultiple(req)
+                ? candidates.equals(other)
+                : candidates.get(0).equals(other.get(0)))
+            {
+                it.remove();
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Removes the first candidate of a given requirement. The candidate lists
+     * returned by getCandidates() may be shared with copies of this object,
+     * so they must be modified through this method.
+     * @param req the requirement whose first candidate is removed.
+     * @return the remaining candidates or null.
+    **/
+    public List<Capability> removeFirstCandidate(Requirement req)
+    {
+        List<Capability> candidates = getMutableCandidates(req);
+        if (candidates != null)
+        {
+            candidates.remove(0);
+            if (m_choices != null)
+            {
+                Integer index = m_choices.get(req);
+                int next = (index == null) ? 1 : (index.intValue() + 1);
+                m_choices = m_choices.put(req, next);
+                m_choicesHash += Fingerprint.hashCode(req, next)
+                    - ((index == null) ? 0 : Fingerprint.hashCode(req, index.intValue()));
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Gets the fingerprint of this permutation, which is equal to the
+     * fingerprint of any other permutation of the same resolve that has the
+     * same candidates.
+     * @return the fingerprint or null if candidates were removed other than
+     *         by removeFirstCandidate().
+    **/
+    public Fingerprint getFingerprint()
+    {
+        return (m_choices != null) ? new Fingerprint(m_choices, m_choicesHash) : null;
+    }
+
+    /**
+     * Removes the given capabilities from the candidates of a given requirement.
+     * @param req the requirement whose candidates are modified.
+     * @param caps the capabilities to remove.
+     * @return the remaining candidates or null.
+    **/
+    public List<Capability> clearCandidates(Requirement req, Collection<Capability> caps)
+    {
+        List<Capability> candidates = getMutableCandidates(req);
+        if (candidates != null)
+        {
+            candidates.removeAll(caps);
+            m_choices = null;
+        }
+        return candidates;
+    }
+
+    // Gets the candidates of a requirement so that they can be modified in place.
+    private List<Capability> getMutableCandidates(Requirement req)
+    {
+        List<Capability> candidates = m_candidateMap.get(req);
+        if ((candidates != null) && (m_owned != null) && !m_owned.containsKey(candidates))
+        {
+            candidates = own(new ArrayList<Capability>(candidates));
+            m_candidateMap = m_candidateMap.put(req, candidates);
+        }
+        return candidates;
+    }
+
+    // Gets the dependents of a capability so that they can be modified in place.
+    private Set<Requirement> getMutableDependents(Capability cap)
+    {
+        Set<Requirement> dependents = m_dependentMap.get(cap);
+        if ((dependents != null) && (m_owned != null) && !m_owned.containsKey(dependents))
+        {
+            dependents = own(new HashSet<Requirement>(dependents));
+            m_dependentMap = m_dependentMap.put(cap, dependents);
+        }
+        return dependents;
+    }
+
+    private <T> T own(T value)
+    {
+        if (m_owned != null)
+        {
+            m_owned.put(value, Boolean.TRUE);
+        }
+        return value;
+    }
+
     /**
      * Merges fragments into their hosts. It does this by wrapping all host
      * modules and attaching their selected fragments, removing all unselected
@@ -666,8 +804,8 @@ class Candidates
                         // unselected for later removal.
                         else
                         {
-                            m_dependentMap.get(hostCap).remove(hostReq);
-                            List<Capability> hosts = m_candidateMap.get(hostReq);
+                            getMutableDependents(hostCap).remove(hostReq);
+                            List<Capability> hosts = getMutableCandidates(hostReq);
                             hosts.remove(hostCap);
                             if (hosts.isEmpty())
                             {
@@ -712,8 +850,8 @@ class Candidates
                     Set<Requirement> dependents = m_dependentMap.get(origCap);
                     if (dependents != null)
                     {
-                        dependents = new HashSet<Requirement>(dependents);
-                        m_dependentMap.put(c, dependents);
+                        dependents = own(new HashSet<Requirement>(dependents));
+                        m_dependentMap = m_dependentMap.put(c, dependents);
                         for (Requirement r : dependents)
                         {
                             // We have synthesized hosted capabilities for all
@@ -743,12 +881,12 @@ class Candidates
                             // matter if they come from the host or fragment,
                             // since we are completing replacing the declaring
                             // host and fragments with the wrapped host.
-                            List<Capability> cands = m_candidateMap.get(r);
+                            List<Capability> cands = getMutableCandidates(r);
                             if (!(cands instanceof ShadowList))
                             {
                                 ShadowList<Capability> shadow =
-                                    new ShadowList<Capability>(cands);
-                                m_candidateMap.put(r, shadow);
+                                    own(new ShadowList<Capability>(cands));
+                                m_candidateMap = m_candidateMap.put(r, shadow);
                                 cands = shadow;
                             }
 
@@ -790,10 +928,10 @@ class Candidates
                 List<Capability> cands = m_candidateMap.get(origReq);
                 if (cands != null)
                 {
-                    m_candidateMap.put(r, new ArrayList<Capability>(cands));
+                    m_candidateMap = m_candidateMap.put(r, own(new ArrayList<Capability>(cands)));
                     for (Capability cand : cands)
                     {
-                        Set<Requirement> dependents = m_dependentMap.get(cand);
+                        Set<Requirement> dependents = getMutableDependents(cand);
                         dependents.remove(origReq);
                         dependents.add(r);
                     }
@@ -823,18 +961,18 @@ class Candidates
         Map<Capability, Map<String, Map<Version, List<Requirement>>>>
             hostFragments = new HashMap<Capability,
                 Map<String, Map<Version, List<Requirement>>>>();
-        for (Entry<Requirement, List<Capability>> entry : m_candidateMap.entrySet())
+        for (Entry<Requirement, List<Capability>> entry : m_candidateMap)
         {
             Requirement req = entry.getKey();
             List<Capability> caps = entry.getValue();
             for (Capability cap : caps)
             {
                 // Record the requirement as dependent on the capability.
-                Set<Requirement> dependents = m_dependentMap.get(cap);
+                Set<Requirement> dependents = getMutableDependents(cap);
                 if (dependents == null)
                 {
-                    dependents = new HashSet<Requirement>();
-                    m_dependentMap.put(cap, dependents);
+                    dependents = own(new HashSet<Requirement>());
+                    m_dependentMap = m_dependentMap.put(cap, dependents);
                 }
                 dependents.add(req);
 
@@ -930,12 +1068,13 @@ class Candidates
     {
         boolean isFragment = req.getNamespace().equals(HostNamespace.HOST_NAMESPACE);
 
-        List<Capability> candidates = m_candidateMap.remove(req);
+        List<Capability> candidates = m_candidateMap.get(req);
+        m_candidateMap = m_candidateMap.remove(req);
         if (candidates != null)
         {
             for (Capability cap : candidates)
             {
-                Set<Requirement> dependents = m_dependentMap.get(cap);
+                Set<Requirement> dependents = getMutableDependents(cap);
                 if (dependents != null)
                 {
                     dependents.remove(req);
@@ -956,16 +1095,17 @@ class Candidates
     private void remove(Capability c, Set<Resource> unresolvedResources)
         throws ResolutionException
     {
-        Set<Requirement> dependents = m_dependentMap.remove(c);
+        Set<Requirement> dependents = m_dependentMap.get(c);
+        m_dependentMap = m_dependentMap.remove(c);
         if (dependents != null)
         {
             for (Requirement r : dependents)
             {
-                List<Capability> candidates = m_candidateMap.get(r);
+                List<Capability> candidates = getMutableCandidates(r);
                 candidates.remove(c);
                 if (candidates.isEmpty())
                 {
-                    m_candidateMap.remove(r);
+                    m_candidateMap = m_candidateMap.remove(r);
                     if (!Util.isOptional(r))
                     {
                         String msg = "Unable to resolve " + r.getResource()
@@ -982,42 +1122,30 @@ class Candidates
 
     /**
      * Creates a copy of the Candidates object. This is used for creating
-     * permutations when package space conflicts are discovered.
+     * permutations when package space conflicts are discovered. The copy
+     * shares all candidate lists and dependent sets with this object, so
+     * creating it takes constant time; either object copies a list or set
+     * when it first modifies it. Copying therefore also modifies this object,
+     * it forgets which lists and sets it owns. It must not be called while
+     * another thread reads or modifies this object.
      * @return copy of this Candidates object.
     **/
     public Candidates copy()
     {
-        Map<Capability, Set<Requirement>> dependentMap =
-            new HashMap<Capability, Set<Requirement>>();
-        for (Entry<Capability, Set<Requirement>> entry : m_dependentMap.entrySet())
-        {
-            Set<Requirement> dependents = new HashSet<Requirement>(entry.getValue());
-            dependentMap.put(entry.getKey(), dependents);
-        }
-
-        Map<Requirement, List<Capability>> candidateMap =
-            new HashMap<Requirement, List<Capability>>();
-        for (Entry<Requirement, List<Capability>> entry
-            : m_candidateMap.entrySet())
-        {
-            List<Capability> candidates =
-                new ArrayList<Capability>(entry.getValue());
-            candidateMap.put(entry.getKey(), candidates);
-        }
-
+        m_owned = new IdentityHashMap<Object, Boolean>();
         return new Candidates(
-            m_mandatoryResources, dependentMap, candidateMap,
-            m_allWrappedHosts, m_populateResultCache, m_fragmentsPresent);
+            m_mandatoryResources, m_dependentMap, m_candidateMap,
+            m_allWrappedHosts, m_populateResultCache, m_fragmentsPresent,
+            m_choices, m_choicesHash);
     }
 
     public void dump(ResolveContext rc)
     {
         // Create set of all revisions from requirements.
         Set<Resource> resources = new HashSet<Resource>();
-        for (Entry<Requirement, List<Capability>> entry
-            : m_candidateMap.entrySet())
+        for (Requirement req : m_candidateMap.keys())
         {
-            resources.add(entry.getKey().getResource());
+            resources.add(req.getResource());
         }
         // Now dump the revisions.
         System.out.println("=== BEGIN CANDIDATE MAP ===");
@@ -1051,4 +1179,56 @@ class Candidates
         }
         System.out.println("=== END CANDIDATE MAP ===");
     }
-}
\ No newline at end of file
+
+    /**
+     * The candidate indexes of the requirements that a permutation permutated.
+    **/
+    public static final class Fingerprint
+    {
+        private final PersistentMap<Requirement, Integer> m_choices;
+        private final int m_hash;
+
+        private Fingerprint(PersistentMap<Requirement, Integer> choices, int hash)
+        {
+            m_choices = choices;
+            m_hash = hash;
+        }
+
+        private static int hashCode(Requirement req, int index)
+        {
+            return req.hashCode() ^ index;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return m_hash;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj)
+            {
+                return true;
+            }
+            if (!(obj instanceof Fingerprint))
+            {
+                return false;
+            }
+            Fingerprint other = (Fingerprint) obj;
+            if ((m_hash != other.m_hash) || (m_choices.size() != other.m_choices.size()))
+            {
+                return false;
+            }
+            for (Entry<Requirement, Integer> entry : m_choices)
+            {
+                if (!entry.getValue().equals(other.m_choices.get(entry.getKey())))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.resolver;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Requirement;
+
+/**
+ * Holds the uses conflicts learned while searching candidate permutations.
+ * A conflict is recorded as the candidate decisions that caused it, which
+ * are the first candidates of the requirements in the blame chains and of
+ * the requirements that reach the conflicting resource. Any permutation that
+ * still makes all of those decisions fails with the same conflict, so it
+ * does not need its package spaces calculated.
+**/
+class Conflicts
+{
+    private final List<Conflict> m_conflicts = new ArrayList<Conflict>();
+
+    public void add(Conflict conflict)
+    {
+        m_conflicts.add(conflict);
+    }
+
+    /**
+     * Gets a learned conflict whose decisions are all made by the given
+     * permutation.
+     * @param permutation the candidate permutation to check.
+     * @return the conflict or null if the permutation is not known to fail.
+    **/
+    public Conflict getConflict(Candidates permutation)
+    {
+        for (Conflict conflict : m_conflicts)
+        {
+            if (conflict.isMadeBy(permutation))
+            {
+                return conflict;
+            }
+        }
+        return null;
+    }
+
+    public int size()
+    {
+        return m_conflicts.size();
+    }
+
+    public void clear()
+    {
+        m_conflicts.clear();
+    }
+
+    static class Conflict
+    {
+        private final List<Requirement> m_reqs = new ArrayList<Requirement>();
+        private final List<Capability> m_caps = new ArrayList<Capability>();
+        private Requirement m_usesPermutable = null;
+        private final List<Requirement> m_importPermutable = new ArrayList<Requirement>();
+
+        public void addDecision(Requirement req, Capability cap)
+        {
+            if (!m_reqs.contains(req))
+            {
+                m_reqs.add(req);
+                m_caps.add(cap);
+            }
+        }
+
+        /**
+         * Sets the blamed requirement whose candidate is removed by the uses
+         * permutation for this conflict.
+         * @param req the requirement to permutate.
+        **/
+        public void setUsesPermutable(Requirement req)
+        {
+            m_usesPermutable = req;
+        }
+
+        public Requirement getUsesPermutable()
+        {
+            return m_usesPermutable;
+        }
+
+        /**
+         * Adds a requirement for which an import permutation is created for
+         * this conflict, which backtracks on an earlier decision.
+         * @param req the requirement to permutate.
+        **/
+        public void addImportPermutable(Requirement req)
+        {
+            m_importPermutable.add(req);
+        }
+
+        public List<Requirement> getImportPermutable()
+        {
+            return m_importPermutable;
+        }
+
+        boolean isMadeBy(Candidates permutation)
+        {
+            for (int i = 0; i < m_reqs.size(); i++)
+            {
+                List<Capability> cands = permutation.getCandidates(m_reqs.get(i));
+                if ((cands == null) || cands.isEmpty()
+                    || !cands.get(0).equals(m_caps.get(i)))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
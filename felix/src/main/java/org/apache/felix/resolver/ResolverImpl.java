@@ -23,12 +23,20 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Queue;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import org.jboss.osgi.resolver.spi.AbstractCapability;
 import org.osgi.framework.namespace.BundleNamespace;
 import org.osgi.framework.namespace.ExecutionEnvironmentNamespace;
 import org.osgi.framework.namespace.HostNamespace;
@@ -58,10 +66,94 @@ public class ResolverImpl implements Resolver
     // This permutation represents a permutation that is consistent because we have
     // removed the offending capabilities
     private Candidates m_multipleCardCandidates = null;
+    // Holds the uses conflicts learned from failed permutations, which are used
+    // to skip permutations that would fail again. It is null if every
+    // permutation is checked.
+    private final Conflicts m_conflicts;
+    // Holds the conflict found by the current consistency check while it is
+    // collecting the decisions that reach the conflicting resource.
+    private Conflicts.Conflict m_conflict = null;
+    // Holds the permutation for which the package spaces were last calculated.
+    // A permutation only recalculates the package spaces that depend on a
+    // requirement whose candidate choice differs from this permutation.
+    private Candidates m_calculatedCandidates = null;
+    // Maps a requirement to the resources whose package spaces depend on
+    // its candidate choice.
+    private final Map<Requirement, Set<Resource>> m_candidateDependents =
+        new HashMap<Requirement, Set<Resource>>();
+    // Maps a resource to the resources whose package spaces depend on its
+    // package space.
+    private final Map<Resource, Set<Resource>> m_packagesDependents =
+        new HashMap<Resource, Set<Resource>>();
+    // Holds the executor that calculates the package spaces of queued
+    // permutations speculatively while the current permutation is checked,
+    // and the number of permutations that are calculated ahead.
+    private final ExecutorService m_executor;
+    private final int m_parallelism;
+    // Holds the fingerprints of the permutations queued so far, so that a
+    // permutation equal to one of them is not queued and checked again. A
+    // permutation that is queued for imports moves to the uses queue if an
+    // equal one is added there, so that it is checked at the same point as
+    // without this check.
+    private final Set<Candidates.Fingerprint> m_permutationFingerprints =
+        new HashSet<Candidates.Fingerprint>();
+    // Counts the permutations that were not queued because they were duplicates.
+    private long m_duplicatePermutations = 0;
 
     public ResolverImpl(Logger logger)
+    {
+        this(logger, false, null, 0);
+    }
+
+    /**
+     * Creates a resolver that optionally searches the candidate permutations
+     * conflict driven. Such a resolver learns the decisions that caused each
+     * uses conflict and skips every permutation that repeats a learned
+     * conflict. This jumps back over all decisions that did not take part in
+     * the conflict.
+     * @param logger the logger.
+     * @param conflictDriven true to search permutations conflict driven.
+    **/
+    protected ResolverImpl(Logger logger, boolean conflictDriven)
+    {
+        this(logger, conflictDriven, null, 0);
+    }
+
+    /**
+     * Creates a resolver that optionally calculates the package spaces of the
+     * next queued candidate permutations on the given executor, while the
+     * current permutation is checked for consistency. The permutations are
+     * still checked one after the other in the order of the queues, so the
+     * first consistent permutation and its wiring are the same as without
+     * it. The executor is not shut down by the resolver.
+     * <p>
+     * The executor threads read the wirings of the resolve context and the
+     * requirements and capabilities of the resources, so these must not
+     * change while a resolve is in progress and must allow concurrent reads.
+     * @param logger the logger.
+     * @param conflictDriven true to search permutations conflict driven.
+     * @param executor the executor that calculates package spaces, or null
+     *        to calculate them only when a permutation is checked.
+     * @param parallelism the number of queued permutations whose package
+     *        spaces are calculated ahead, it is ignored without executor.
+    **/
+    protected ResolverImpl(
+        Logger logger, boolean conflictDriven, ExecutorService executor, int parallelism)
     {
         m_logger = logger;
+        m_conflicts = conflictDriven ? new Conflicts() : null;
+        m_executor = (parallelism > 0) ? executor : null;
+        m_parallelism = parallelism;
+    }
+
+    /**
+     * Gets the number of candidate permutations that were not checked since
+     * an equal permutation was queued before during the same resolve.
+     * @return the number of suppressed duplicate permutations of all resolves.
+    **/
+    public long getDuplicatePermutations()
+    {
+        return m_duplicatePermutations;
     }
 
     public Map<Resource, List<Wire>> resolve(ResolveContext rc) throws ResolutionException
@@ -83,6 +175,7 @@ public class ResolverImpl implements Resolver
         do
         {
             retry = false;
+            Speculation speculation = null;
 
             try
             {
@@ -145,7 +238,7 @@ public class ResolverImpl implements Resolver
                 }
 
                 // Record the initial candidate permutation.
-                m_usesPermutations.add(allCandidates);
+                addPermutation(allCandidates, m_usesPermutations);
 
                 ResolutionException rethrow = null;
 
@@ -164,20 +257,43 @@ public class ResolverImpl implements Resolver
                     }
                 }
 
+                if (m_executor != null)
+                {
+                    speculation = new Speculation(
+                        m_logger, m_executor, m_parallelism, rc, allResources, hostReqs);
+                }
+
                 do
                 {
+                    // If all remaining permutations repeat a learned conflict,
+                    // then the last failure is final.
+                    Candidates next = nextPermutation();
+                    if (next == null)
+                    {
+                        break;
+                    }
+                    allCandidates = next;
                     rethrow = null;
 
-                    resourcePkgMap.clear();
-                    m_packageSourcesCache.clear();
+                    PackageSpaces speculated = (speculation != null)
+                        ? speculation.take(
+                            allCandidates, m_usesPermutations, m_importPermutations)
+                        : null;
+                    if (speculated != null)
+                    {
+                        // The package spaces were calculated in the background,
+                        // take them with the dependencies they were calculated
+                        // from, so that the next permutation can reuse them.
+                        adoptPackageSpaces(allCandidates, speculated, resourcePkgMap);
+                    }
+                    else
+                    {
+                        invalidatePackageSpaces(allCandidates, resourcePkgMap);
+                    }
                     // Null out each time a new permutation is attempted.
                     // We only use this to store a valid permutation which is a
                     // delta of the current permutation.
                     m_multipleCardCandidates = null;
-
-                    allCandidates = (m_usesPermutations.size() > 0)
-                        ? m_usesPermutations.remove(0)
-                        : m_importPermutations.remove(0);
 //allCandidates.dump();
                     // Reuse a resultCache map for checking package consistency
                     // for all resources.
@@ -213,6 +329,7 @@ public class ResolverImpl implements Resolver
                         catch (ResolutionException ex)
                         {
                             rethrow = ex;
+                            addConflict();
                         }
                     }
                 }
@@ -292,7 +409,18 @@ public class ResolverImpl implements Resolver
                 // Always clear the state.
                 m_usesPermutations.clear();
                 m_importPermutations.clear();
+                m_permutationFingerprints.clear();
                 m_multipleCardCandidates = null;
+                if (m_conflicts != null)
+                {
+                    m_conflicts.clear();
+                    m_conflict = null;
+                }
+                clearPackageSpaces();
+                if (speculation != null)
+                {
+                    speculation.shutdown();
+                }
             }
         }
         while (retry);
@@ -381,20 +509,21 @@ public class ResolverImpl implements Resolver
                     allCandidates.prepare(rc);
 
                     // Record the initial candidate permutation.
-                    m_usesPermutations.add(allCandidates);
+                    addPermutation(allCandidates, m_usesPermutations);
 
                     ResolutionException rethrow = null;
 
                     do
                     {
+                        Candidates next = nextPermutation();
+                        if (next == null)
+                        {
+                            break;
+                        }
+                        allCandidates = next;
                         rethrow = null;
 
-                        resourcePkgMap.clear();
-                        m_packageSourcesCache.clear();
-
-                        allCandidates = (m_usesPermutations.size() > 0)
-                            ? m_usesPermutations.remove(0)
-                            : m_importPermutations.remove(0);
+                        invalidatePackageSpaces(allCandidates, resourcePkgMap);
 //allCandidates.dump();
 
                         // For a dynamic import, the instigating resource
@@ -418,6 +547,7 @@ public class ResolverImpl implements Resolver
                         catch (ResolutionException ex)
                         {
                             rethrow = ex;
+                            addConflict();
                         }
                     }
                     while ((rethrow != null)
@@ -466,6 +596,13 @@ public class ResolverImpl implements Resolver
                     // Always clear the state.
                     m_usesPermutations.clear();
                     m_importPermutations.clear();
+                    m_permutationFingerprints.clear();
+                    if (m_conflicts != null)
+                    {
+                        m_conflicts.clear();
+                        m_conflict = null;
+                    }
+                    clearPackageSpaces();
                 }
             }
             while (retry);
@@ -481,6 +618,28 @@ public class ResolverImpl implements Resolver
         Map<Resource, Packages> resourcePkgMap,
         Map<Capability, List<Resource>> usesCycleMap,
         Set<Resource> cycle)
+    {
+        // Calculate the exported, imported and required packages of the
+        // resource and of all resources it depends on before merging the uses
+        // constraints of any of them. Merging the uses constraints reads the
+        // packages of the resources a resource depends on, which would only be
+        // partially calculated within a dependency cycle otherwise.
+        List<Resource> calculated = new ArrayList<Resource>();
+        calculatePackages(
+            rc, resource, allCandidates, resourcePkgMap, calculated, cycle);
+        for (Resource r : calculated)
+        {
+            calculateUses(rc, r, allCandidates, resourcePkgMap, usesCycleMap);
+        }
+    }
+
+    private void calculatePackages(
+        ResolveContext rc,
+        Resource resource,
+        Candidates allCandidates,
+        Map<Resource, Packages> resourcePkgMap,
+        List<Resource> calculated,
+        Set<Resource> cycle)
     {
         if (cycle.contains(resource))
         {
@@ -490,24 +649,89 @@ public class ResolverImpl implements Resolver
 
         // Make sure package space hasn't already been calculated.
         Packages resourcePkgs = resourcePkgMap.get(resource);
-        if (resourcePkgs != null)
+        if ((resourcePkgs != null) && resourcePkgs.m_isCalculated)
         {
-            if (resourcePkgs.m_isCalculated)
+            return;
+        }
+        calculated.add(resource);
+
+        List<Requirement> reqs = new ArrayList();
+        List<Capability> caps = new ArrayList();
+        boolean isDynamicImporting = getRequirementCapabilities(
+            rc, resource, allCandidates, reqs, caps);
+
+        // Record the candidate choices and package spaces that the package
+        // space is calculated from. The exported packages only depend on
+        // whether a package requirement has candidates, which a permutation
+        // does not change.
+        for (int i = 0; i < reqs.size(); i++)
+        {
+            if (allCandidates.getCandidates(reqs.get(i)) != null)
             {
-                return;
+                addDependent(m_candidateDependents, reqs.get(i), resource);
             }
-            else
+            addDependent(m_packagesDependents, caps.get(i).getResource(), resource);
+        }
+
+        // First, add all exported packages to the target resource's package space.
+        calculateExportedPackages(rc, resource, allCandidates, resourcePkgMap);
+        resourcePkgs = resourcePkgMap.get(resource);
+        resourcePkgs.m_isCalculated = true;
+
+        // Second, add all imported packages to the target resource's package space.
+        for (int i = 0; i < reqs.size(); i++)
+        {
+            Requirement req = reqs.get(i);
+            Capability cap = caps.get(i);
+            calculateExportedPackages(rc, cap.getResource(), allCandidates, resourcePkgMap);
+
+            // If this resource is dynamically importing, then the last requirement
+            // is the dynamic import being resolved, since it is added last to the
+            // parallel lists above. For the dynamically imported package, make
+            // sure that the resource doesn't already have a provider for that
+            // package, which would be illegal and shouldn't be allowed.
+            if (isDynamicImporting && ((i + 1) == reqs.size()))
             {
-                resourcePkgs.m_isCalculated = true;
+                String pkgName = (String) cap.getAttributes().get(PackageNamespace.PACKAGE_NAMESPACE);
+                if (resourcePkgs.m_exportedPkgs.containsKey(pkgName)
+                    || resourcePkgs.m_importedPkgs.containsKey(pkgName)
+                    || resourcePkgs.m_requiredPkgs.containsKey(pkgName))
+                {
+                    throw new IllegalArgumentException(
+                        "Resource "
+                        + resource
+                        + " cannot dynamically import package '"
+                        + pkgName
+                        + "' since it already has access to it.");
+                }
             }
+
+            mergeCandidatePackages(
+                rc, resource, req, cap, resourcePkgMap, allCandidates,
+                new HashMap<Resource, List<Capability>>());
         }
 
-        // Create parallel lists for requirement and proposed candidate
-        // capability or actual capability if resource is resolved or not.
-        // We use parallel lists so we can calculate the packages spaces for
-        // resolved and unresolved resources in an identical fashion.
-        List<Requirement> reqs = new ArrayList();
-        List<Capability> caps = new ArrayList();
+        // Third, have all candidates to calculate their package spaces.
+        for (int i = 0; i < caps.size(); i++)
+        {
+            calculatePackages(
+                rc, caps.get(i).getResource(), allCandidates, resourcePkgMap,
+                calculated, cycle);
+        }
+    }
+
+    // Creates parallel lists for requirement and proposed candidate
+    // capability or actual capability if resource is resolved or not.
+    // We use parallel lists so we can calculate the packages spaces for
+    // resolved and unresolved resources in an identical fashion. Returns
+    // true if the last requirement is the dynamic import of a resolved resource.
+    private static boolean getRequirementCapabilities(
+        ResolveContext rc,
+        Resource resource,
+        Candidates allCandidates,
+        List<Requirement> reqs,
+        List<Capability> caps)
+    {
         boolean isDynamicImporting = false;
         Wiring wiring = rc.getWirings().get(resource);
         if (wiring != null)
@@ -605,50 +829,21 @@ public class ResolverImpl implements Resolver
             }
         }
 
-        // First, add all exported packages to the target resource's package space.
-        calculateExportedPackages(rc, resource, allCandidates, resourcePkgMap);
-        resourcePkgs = resourcePkgMap.get(resource);
-
-        // Second, add all imported packages to the target resource's package space.
-        for (int i = 0; i < reqs.size(); i++)
-        {
-            Requirement req = reqs.get(i);
-            Capability cap = caps.get(i);
-            calculateExportedPackages(rc, cap.getResource(), allCandidates, resourcePkgMap);
-
-            // If this resource is dynamically importing, then the last requirement
-            // is the dynamic import being resolved, since it is added last to the
-            // parallel lists above. For the dynamically imported package, make
-            // sure that the resource doesn't already have a provider for that
-            // package, which would be illegal and shouldn't be allowed.
-            if (isDynamicImporting && ((i + 1) == reqs.size()))
-            {
-                String pkgName = (String) cap.getAttributes().get(PackageNamespace.PACKAGE_NAMESPACE);
-                if (resourcePkgs.m_exportedPkgs.containsKey(pkgName)
-                    || resourcePkgs.m_importedPkgs.containsKey(pkgName)
-                    || resourcePkgs.m_requiredPkgs.containsKey(pkgName))
-                {
-                    throw new IllegalArgumentException(
-                        "Resource "
-                        + resource
-                        + " cannot dynamically import package '"
-                        + pkgName
-                        + "' since it already has access to it.");
-                }
-            }
-
-            mergeCandidatePackages(
-                rc, resource, req, cap, resourcePkgMap, allCandidates,
-                new HashMap<Resource, List<Capability>>());
-        }
+        return isDynamicImporting;
+    }
 
-        // Third, have all candidates to calculate their package spaces.
-        for (int i = 0; i < caps.size(); i++)
-        {
-            calculatePackageSpaces(
-                rc, caps.get(i).getResource(), allCandidates, resourcePkgMap,
-                usesCycleMap, cycle);
-        }
+    private void calculateUses(
+        ResolveContext rc,
+        Resource resource,
+        Candidates allCandidates,
+        Map<Resource, Packages> resourcePkgMap,
+        Map<Capability, List<Resource>> usesCycleMap)
+    {
+        List<Requirement> reqs = new ArrayList();
+        List<Capability> caps = new ArrayList();
+        boolean isDynamicImporting = getRequirementCapabilities(
+            rc, resource, allCandidates, reqs, caps);
+        Packages resourcePkgs = resourcePkgMap.get(resource);
 
         // Fourth, if the target resource is unresolved or is dynamically importing,
         // then add all the uses constraints implied by its imported and required
@@ -659,7 +854,7 @@ public class ResolverImpl implements Resolver
         // only exception is if a resolved resource is dynamically importing, then
         // we need to calculate its uses constraints again to make sure the new
         // import is consistent with the existing package space.
-        if ((wiring == null) || isDynamicImporting)
+        if ((rc.getWirings().get(resource) == null) || isDynamicImporting)
         {
             // Merge uses constraints from required capabilities.
             for (int i = 0; i < reqs.size(); i++)
@@ -733,6 +928,119 @@ public class ResolverImpl implements Resolver
         }
     }
 
+    /**
+     * Removes the package spaces that cannot be reused for the specified
+     * permutation. These are the package spaces that depend on a requirement
+     * whose candidate choice differs from the previously calculated
+     * permutation and, transitively, the package spaces that depend on them,
+     * since their uses constraints are merged from them. The remaining
+     * package spaces are calculated already and are reused.
+     * @param allCandidates the permutation to calculate the package spaces for.
+     * @param resourcePkgMap the package spaces of the previous permutation.
+    **/
+    private void invalidatePackageSpaces(
+        Candidates allCandidates, Map<Resource, Packages> resourcePkgMap)
+    {
+        if (m_calculatedCandidates == null)
+        {
+            resourcePkgMap.clear();
+            m_packageSourcesCache.clear();
+        }
+        else
+        {
+            List<Resource> invalid = new ArrayList<Resource>();
+            for (Requirement req
+                : allCandidates.getChangedRequirements(m_calculatedCandidates))
+            {
+                Set<Resource> dependents = m_candidateDependents.remove(req);
+                if (dependents != null)
+                {
+                    invalid.addAll(dependents);
+                }
+            }
+            Set<Resource> removed = new HashSet<Resource>();
+            while (!invalid.isEmpty())
+            {
+                Resource resource = invalid.remove(invalid.size() - 1);
+                if (removed.add(resource))
+                {
+                    resourcePkgMap.remove(resource);
+                    Set<Resource> dependents = m_packagesDependents.remove(resource);
+                    if (dependents != null)
+                    {
+                        invalid.addAll(dependents);
+                    }
+                }
+            }
+            // The sources of a package depend on the package space of
+            // the resource that provides it.
+            if (!removed.isEmpty())
+            {
+                for (Iterator<Capability> it = m_packageSourcesCache.keySet().iterator();
+                    it.hasNext();)
+                {
+                    if (removed.contains(it.next().getResource()))
+                    {
+                        it.remove();
+                    }
+                }
+            }
+        }
+        m_calculatedCandidates = allCandidates;
+    }
+
+    /**
+     * Replaces the package spaces and their dependencies with the ones that
+     * were calculated for the specified permutation by a calculator.
+     * @param allCandidates the permutation the package spaces are for.
+     * @param spaces the package spaces calculated for an equal permutation.
+     * @param resourcePkgMap the package spaces of the previous permutation.
+    **/
+    private void adoptPackageSpaces(
+        Candidates allCandidates, PackageSpaces spaces,
+        Map<Resource, Packages> resourcePkgMap)
+    {
+        resourcePkgMap.clear();
+        resourcePkgMap.putAll(spaces.m_resourcePkgMap);
+        m_candidateDependents.clear();
+        m_candidateDependents.putAll(spaces.m_candidateDependents);
+        m_packagesDependents.clear();
+        m_packagesDependents.putAll(spaces.m_packagesDependents);
+        m_packageSourcesCache.clear();
+        m_calculatedCandidates = allCandidates;
+    }
+
+    private void clearPackageSpaces()
+    {
+        m_calculatedCandidates = null;
+        m_candidateDependents.clear();
+        m_packagesDependents.clear();
+        m_packageSourcesCache.clear();
+    }
+
+    private static <K> Map<K, Set<Resource>> copyDependents(
+        Map<K, Set<Resource>> dependentMap)
+    {
+        Map<K, Set<Resource>> result = new HashMap<K, Set<Resource>>(dependentMap.size());
+        for (Entry<K, Set<Resource>> entry : dependentMap.entrySet())
+        {
+            result.put(entry.getKey(), new HashSet<Resource>(entry.getValue()));
+        }
+        return result;
+    }
+
+    private static <K> void addDependent(
+        Map<K, Set<Resource>> dependentMap, K key, Resource dependent)
+    {
+        Set<Resource> dependents = dependentMap.get(key);
+        if (dependents == null)
+        {
+            dependents = new HashSet<Resource>();
+            dependentMap.put(key, dependents);
+        }
+        dependents.add(dependent);
+    }
+
     private void mergeCandidatePackages(
         ResolveContext rc, Resource current, Requirement currentReq,
         Capability candCap, Map<Resource, Packages> resourcePkgMap,
@@ -818,6 +1126,7 @@ public class ResolverImpl implements Resolver
                             && value.equals(BundleNamespace.VISIBILITY_REEXPORT)
                             && (allCandidates.getCandidates(req) != null))
                         {
+                            addDependent(m_candidateDependents, req, current);
                             mergeCandidatePackages(
                                 rc,
                                 current,
@@ -896,12 +1205,16 @@ public class ResolverImpl implements Resolver
         for (Capability candSourceCap : getPackageSources(rc, mergeCap, resourcePkgMap))
         {
             List<String> uses;
-// TODO: RFC-112 - Need impl-specific type
-//            if (candSourceCap instanceof FelixCapability)
-//            {
-//                uses = ((FelixCapability) candSourceCap).getUses();
-//            }
-//            else
+            // A hosted capability has the directives of its declared capability
+            Capability usesCap = (candSourceCap instanceof HostedCapability)
+                ? ((HostedCapability) candSourceCap).getDeclaredCapability()
+                : candSourceCap;
+            if (usesCap instanceof AbstractCapability)
+            {
+                // The uses directive is parsed once when the capability is validated
+                uses = ((AbstractCapability) usesCap).getUses();
+            }
+            else
             {
                 uses = Collections.EMPTY_LIST;
                 String s = candSourceCap.getDirectives()
@@ -1057,6 +1370,7 @@ public class ResolverImpl implements Resolver
                         permutate(allCandidates, blame.m_reqs.get(0), m_importPermutations);
                         // Try to permutate the source requirement.
                         permutate(allCandidates, sourceBlame.m_reqs.get(0), m_importPermutations);
+                        learnConflict(allCandidates, resourcePkgMap, resource, sourceBlame, blame);
                         // Report conflict.
                         ResolutionException ex = new ResolutionException(
                             "Uses constraint violation. Unable to resolve resource "
@@ -1113,6 +1427,10 @@ public class ResolverImpl implements Resolver
                         permutation = (permutation != null)
                             ? permutation
                             : allCandidates.copy();
+                        if (rethrow == null)
+                        {
+                            learnConflict(allCandidates, resourcePkgMap, resource, exportBlame, usedBlame);
+                        }
                         rethrow = (rethrow != null)
                             ? rethrow
                             : new ResolutionException(
@@ -1157,7 +1475,7 @@ public class ResolverImpl implements Resolver
                             {
                                 mutated.add(req);
                                 // Remove the conflicting candidate.
-                                candidates.remove(0);
+                                permutation.removeFirstCandidate(req);
                                 // Continue with the next uses constraint.
                                 break;
                             }
@@ -1170,7 +1488,7 @@ public class ResolverImpl implements Resolver
             {
                 if (!mutated.isEmpty())
                 {
-                    m_usesPermutations.add(permutation);
+                    addPermutation(permutation, m_usesPermutations);
                 }
                 m_logger.log(
                     Logger.LOG_DEBUG,
@@ -1215,6 +1533,10 @@ public class ResolverImpl implements Resolver
                             permutation = (permutation != null)
                                 ? permutation
                                 : allCandidates.copy();
+                            if (rethrow == null)
+                            {
+                                learnConflict(allCandidates, resourcePkgMap, resource, requirementBlame, usedBlame);
+                            }
                             rethrow = (rethrow != null)
                                 ? rethrow
                                 : new ResolutionException(
@@ -1264,7 +1586,7 @@ public class ResolverImpl implements Resolver
                                 {
                                     mutated.add(req);
                                     // Remove the conflicting candidate.
-                                    candidates.remove(0);
+                                    permutation.removeFirstCandidate(req);
                                     // Continue with the next uses constraint.
                                     break;
                                 }
@@ -1284,7 +1606,7 @@ public class ResolverImpl implements Resolver
                     // Add uses permutation if we mutated any candidates.
                     if (!mutated.isEmpty())
                     {
-                        m_usesPermutations.add(permutation);
+                        addPermutation(permutation, m_usesPermutations);
                     }
 
                     // Try to permutate the candidate for the original
@@ -1316,7 +1638,7 @@ public class ResolverImpl implements Resolver
         // current resource depends. Keep track of the current number
         // of permutations so we know if the lower level check was
         // able to create a permutation or not in the case of failure.
-        int permCount = m_usesPermutations.size() + m_importPermutations.size();
+        long permCount = getPermutationCount();
         for (Requirement req : resource.getRequirements(null))
         {
             List<Capability> cands = allCandidates.getCandidates(req);
@@ -1337,10 +1659,22 @@ public class ResolverImpl implements Resolver
                         // then we should create an import permutation for the
                         // requirement with the dependency on the failing resource
                         // to backtrack on our current candidate selection.
-                        if (permCount == (m_usesPermutations.size() + m_importPermutations.size()))
+                        if (permCount == getPermutationCount())
                         {
                             permutate(allCandidates, req, m_importPermutations);
                         }
+                        // The conflict only occurs if the failing resource
+                        // is reached through the same decisions.
+                        if (m_conflict != null)
+                        {
+                            m_conflict.addDecision(req, cap);
+                            if ((m_conflict.getUsesPermutable() == null)
+                                && m_conflict.getImportPermutable().isEmpty()
+                                && isPermutable(allCandidates, req))
+                            {
+                                m_conflict.addImportPermutable(req);
+                            }
+                        }
                         throw ex;
                     }
                 }
@@ -1367,15 +1701,152 @@ public class ResolverImpl implements Resolver
             }
             // Get the current candidate list and remove all the offending root
             // cause candidates from a copy of the current permutation.
-            candidates = m_multipleCardCandidates.getCandidates(req);
-            candidates.removeAll(usedBlames.getRootCauses(req));
+            candidates = m_multipleCardCandidates.clearCandidates(
+                req, usedBlames.getRootCauses(req));
         }
         // We only are successful if there is at least one candidate left
         // for the requirement
         return (candidates != null) && !candidates.isEmpty();
     }
 
-    private static void permutate(
+    private Candidates nextPermutation()
+    {
+        while ((m_usesPermutations.size() > 0) || (m_importPermutations.size() > 0))
+        {
+            Candidates permutation = (m_usesPermutations.size() > 0)
+                ? m_usesPermutations.remove(0)
+                : m_importPermutations.remove(0);
+            Conflicts.Conflict conflict = (m_conflicts != null)
+                ? m_conflicts.getConflict(permutation)
+                : null;
+            if (conflict == null)
+            {
+                return permutation;
+            }
+            // The permutation still makes the decisions of a learned conflict,
+            // so skip it without calculating package spaces. Instead, create
+            // the permutations its consistency check would have created.
+            m_logger.log(
+                Logger.LOG_DEBUG,
+                "Skipping candidate permutation that repeats one of "
+                + m_conflicts.size() + " known conflicts.");
+            if (conflict.getUsesPermutable() != null)
+            {
+                permutate(permutation, conflict.getUsesPermutable(), m_usesPermutations);
+            }
+            for (Requirement req : conflict.getImportPermutable())
+            {
+                permutate(permutation, req, m_importPermutations);
+            }
+        }
+        return null;
+    }
+
+    private void learnConflict(
+        Candidates allCandidates, Map<Resource, Packages> resourcePkgMap,
+        Resource resource, Blame blame, Blame conflictingBlame)
+    {
+        m_conflict = null;
+        if (m_conflicts == null)
+        {
+            return;
+        }
+        // Record the decisions for all requirements in both blame chains.
+        // The package sources used for the compatibility check also depend
+        // on the required bundles of every resource on the chains.
+        Conflicts.Conflict conflict = new Conflicts.Conflict();
+        List<Resource> resources = new ArrayList<Resource>();
+        Set<Resource> visited = new HashSet<Resource>();
+        resources.add(resource);
+        for (Blame b : new Blame[] { blame, conflictingBlame })
+        {
+            resources.add(b.m_cap.getResource());
+            if (!addDecisions(allCandidates, b, conflict, resources))
+            {
+                return;
+            }
+        }
+        while (!resources.isEmpty())
+        {
+            Resource r = resources.remove(resources.size() - 1);
+            Packages pkgs = resourcePkgMap.get(r);
+            if (visited.add(r) && (pkgs != null))
+            {
+                for (List<Blame> requiredBlames : pkgs.m_requiredPkgs.values())
+                {
+                    for (Blame b : requiredBlames)
+                    {
+                        resources.add(b.m_cap.getResource());
+                        if (!addDecisions(allCandidates, b, conflict, resources))
+                        {
+                            return;
+                        }
+                    }
+                }
+            }
+        }
+        // Like the consistency check, permutate the last blamed requirement
+        // with other candidates and the root requirement of the other chain.
+        for (int reqIdx = conflictingBlame.m_reqs.size() - 1; reqIdx >= 0; reqIdx--)
+        {
+            Requirement req = conflictingBlame.m_reqs.get(reqIdx);
+            if (isPermutable(allCandidates, req))
+            {
+                conflict.setUsesPermutable(req);
+                break;
+            }
+        }
+        if ((blame.m_reqs != null) && isPermutable(allCandidates, blame.m_reqs.get(0)))
+        {
+            conflict.addImportPermutable(blame.m_reqs.get(0));
+        }
+        m_conflict = conflict;
+    }
+
+    private void addConflict()
+    {
+        if (m_conflict != null)
+        {
+            m_conflicts.add(m_conflict);
+            m_conflict = null;
+        }
+    }
+
+    private static boolean addDecisions(
+        Candidates allCandidates, Blame blame,
+        Conflicts.Conflict conflict, List<Resource> resources)
+    {
+        if (blame.m_reqs != null)
+        {
+            for (Requirement req : blame.m_reqs)
+            {
+                // The candidates of a multiple cardinality requirement can be
+                // trimmed without a new permutation, so such a conflict is
+                // not learned.
+                if (Util.isMultiple(req))
+                {
+                    return false;
+                }
+                // Requirements of resolved resources have no candidates.
+                List<Capability> cands = allCandidates.getCandidates(req);
+                if ((cands != null) && !cands.isEmpty())
+                {
+                    conflict.addDecision(req, cands.get(0));
+                    resources.add(req.getResource());
+                    resources.add(cands.get(0).getResource());
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean isPermutable(Candidates allCandidates, Requirement req)
+    {
+        List<Capability> cands = allCandidates.getCandidates(req);
+        return !Util.isMultiple(req) && (cands != null) && (cands.size() > 1);
+    }
+
+    private void permutate(
         Candidates allCandidates, Requirement req, List<Candidates> permutations)
     {
         if (!Util.isMultiple(req))
@@ -1384,14 +1855,54 @@ public class ResolverImpl implements Resolver
             if ((candidates != null) && (candidates.size() > 1))
             {
                 Candidates perm = allCandidates.copy();
-                candidates = perm.getCandidates(req);
-                candidates.remove(0);
-                permutations.add(perm);
+                perm.removeFirstCandidate(req);
+                addPermutation(perm, permutations);
             }
         }
     }
 
-    private static void permutateIfNeeded(
+    private void addPermutation(Candidates permutation, List<Candidates> permutations)
+    {
+        Candidates.Fingerprint fingerprint = permutation.getFingerprint();
+        if ((fingerprint == null) || m_permutationFingerprints.add(fingerprint))
+        {
+            permutations.add(permutation);
+        }
+        else
+        {
+            if (permutations == m_usesPermutations)
+            {
+                promotePermutation(fingerprint);
+            }
+            m_duplicatePermutations++;
+        }
+    }
+
+    // Moves a queued import permutation with the given fingerprint to the
+    // end of the uses queue, which is checked first.
+    private void promotePermutation(Candidates.Fingerprint fingerprint)
+    {
+        for (Iterator<Candidates> it = m_importPermutations.iterator(); it.hasNext(); )
+        {
+            Candidates permutation = it.next();
+            if (fingerprint.equals(permutation.getFingerprint()))
+            {
+                it.remove();
+                m_usesPermutations.add(permutation);
+                return;
+            }
+        }
+    }
+
+    // Counts the permutations that were created, including the duplicates
+    // that were not queued, since an equal permutation is queued already.
+    private long getPermutationCount()
+    {
+        return m_usesPermutations.size() + m_importPermutations.size()
+            + m_duplicatePermutations;
+    }
+
+    private void permutateIfNeeded(
         Candidates allCandidates, Requirement req, List<Candidates> permutations)
     {
         List<Capability> candidates = allCandidates.getCandidates(req);
@@ -1402,7 +1913,8 @@ public class ResolverImpl implements Resolver
             // duplicate permutations is simplistic. It assumes if
             // there is any permutation that contains a different
             // initial candidate for the requirement in question,
-            // then it has already been permutated.
+            // then it has already been permutated. Permutations that
+            // are equal to a queued one are suppressed in any case.
             boolean permutated = false;
             for (Candidates existingPerm : permutations)
             {
@@ -1985,6 +2497,225 @@ public class ResolverImpl implements Resolver
         return cap;
     }
 
+    /**
+     * Calculates the package spaces of the next queued permutations on an
+     * executor. Each calculation takes an idle calculator, which reuses
+     * the package spaces of the last permutation it calculated. The
+     * calculators work on copies of the permutations, which are made on the
+     * resolving thread, since a permutation is modified when it is copied.
+    **/
+    private static class Speculation
+    {
+        private final Logger m_logger;
+        private final ExecutorService m_executor;
+        private final int m_parallelism;
+        private final ResolveContext m_rc;
+        private final Set<Resource> m_allResources;
+        private final Map<Resource, List<Requirement>> m_hostReqs;
+        private final Queue<Calculator> m_calculators =
+            new ConcurrentLinkedQueue<Calculator>();
+        private Map<Candidates, Future<PackageSpaces>> m_futures =
+            new IdentityHashMap<Candidates, Future<PackageSpaces>>();
+
+        public Speculation(
+            Logger logger, ExecutorService executor, int parallelism,
+            ResolveContext rc, Set<Resource> allResources,
+            Map<Resource, List<Requirement>> hostReqs)
+        {
+            m_logger = logger;
+            m_executor = executor;
+            m_parallelism = parallelism;
+            m_rc = rc;
+            m_allResources = allResources;
+            m_hostReqs = hostReqs;
+        }
+
+        /**
+         * Returns the package spaces of the given permutation if they were
+         * calculated speculatively, otherwise null. Before waiting for them,
+         * the package spaces of the permutations queued next are submitted.
+        **/
+        public PackageSpaces take(
+            Candidates permutation, List<Candidates> usesPermutations,
+            List<Candidates> importPermutations)
+        {
+            Future<PackageSpaces> future = m_futures.remove(permutation);
+
+            // Uses permutations are checked before import permutations. The
+            // calculations of permutations that are no longer queued next,
+            // because they were skipped or other permutations were queued
+            // ahead of them, are abandoned.
+            Map<Candidates, Future<PackageSpaces>> futures =
+                new IdentityHashMap<Candidates, Future<PackageSpaces>>();
+            speculate(usesPermutations, futures);
+            speculate(importPermutations, futures);
+            for (Future<PackageSpaces> abandoned : m_futures.values())
+            {
+                abandoned.cancel(false);
+            }
+            m_futures = futures;
+
+            if (future == null)
+            {
+                return null;
+            }
+            try
+            {
+                return future.get();
+            }
+            catch (InterruptedException ex)
+            {
+                // Calculate the package spaces without waiting.
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            catch (ExecutionException ex)
+            {
+                Throwable cause = ex.getCause();
+                if (cause instanceof RuntimeException)
+                {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error)
+                {
+                    throw (Error) cause;
+                }
+                throw new IllegalStateException(cause);
+            }
+        }
+
+        public void shutdown()
+        {
+            for (Future<PackageSpaces> abandoned : m_futures.values())
+            {
+                abandoned.cancel(true);
+            }
+            m_futures.clear();
+        }
+
+        private void speculate(
+            List<Candidates> permutations,
+            Map<Candidates, Future<PackageSpaces>> futures)
+        {
+            for (Candidates permutation : permutations)
+            {
+                if (futures.size() == m_parallelism)
+                {
+                    return;
+                }
+                Future<PackageSpaces> future = m_futures.remove(permutation);
+                if (future == null)
+                {
+                    future = submit(permutation);
+                }
+                futures.put(permutation, future);
+            }
+        }
+
+        private Future<PackageSpaces> submit(Candidates permutation)
+        {
+            final Candidates copy = permutation.copy();
+            return m_executor.submit(new Callable<PackageSpaces>()
+            {
+                public PackageSpaces call()
+                {
+                    Calculator calculator = m_calculators.poll();
+                    if (calculator == null)
+                    {
+                        calculator = new Calculator(m_logger);
+                    }
+                    try
+                    {
+                        return calculator.calculate(
+                            m_rc, copy, m_allResources, m_hostReqs);
+                    }
+                    finally
+                    {
+                        m_calculators.add(calculator);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Calculates the package spaces of all root resources for one
+     * permutation at a time.
+    **/
+    private static class Calculator
+    {
+        private final ResolverImpl m_resolver;
+        private final Map<Resource, Packages> m_resourcePkgMap =
+            new HashMap<Resource, Packages>();
+
+        public Calculator(Logger logger)
+        {
+            m_resolver = new ResolverImpl(logger);
+        }
+
+        public PackageSpaces calculate(
+            ResolveContext rc, Candidates allCandidates, Set<Resource> allResources,
+            Map<Resource, List<Requirement>> hostReqs)
+        {
+            m_resolver.invalidatePackageSpaces(allCandidates, m_resourcePkgMap);
+            for (Resource resource : allResources)
+            {
+                Resource target = resource;
+
+                // If we are resolving a fragment, then calculate the
+                // package space of its host candidate instead.
+                List<Requirement> hostReq = hostReqs.get(resource);
+                if (hostReq != null)
+                {
+                    target = allCandidates.getCandidates(hostReq.get(0))
+                        .iterator().next().getResource();
+                }
+
+                m_resolver.calculatePackageSpaces(
+                    rc, allCandidates.getWrappedHost(target), allCandidates,
+                    m_resourcePkgMap, new HashMap(), new HashSet());
+            }
+
+            // Calculated package spaces are not modified anymore, but the
+            // others may be completed by the caller, so they are handed over.
+            // The dependencies are copied, since both sides modify them.
+            PackageSpaces result = new PackageSpaces(
+                new HashMap<Resource, Packages>(m_resourcePkgMap),
+                copyDependents(m_resolver.m_candidateDependents),
+                copyDependents(m_resolver.m_packagesDependents));
+            for (Iterator<Packages> it = m_resourcePkgMap.values().iterator();
+                it.hasNext();)
+            {
+                if (!it.next().m_isCalculated)
+                {
+                    it.remove();
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * The package spaces of a permutation with the candidate choices and
+     * package spaces that each of them was calculated from.
+    **/
+    private static class PackageSpaces
+    {
+        public final Map<Resource, Packages> m_resourcePkgMap;
+        public final Map<Requirement, Set<Resource>> m_candidateDependents;
+        public final Map<Resource, Set<Resource>> m_packagesDependents;
+
+        public PackageSpaces(
+            Map<Resource, Packages> resourcePkgMap,
+            Map<Requirement, Set<Resource>> candidateDependents,
+            Map<Resource, Set<Resource>> packagesDependents)
+        {
+            m_resourcePkgMap = resourcePkgMap;
+            m_candidateDependents = candidateDependents;
+            m_packagesDependents = packagesDependents;
+        }
+    }
+
     private static class Packages
     {
         private final Resource m_resource;
@@ -20,6 +20,9 @@ package org.apache.felix.resolver;
 
 import java.util.ArrayList;
 import java.util.List;
+import org.jboss.osgi.resolver.XIdentityCapability;
+import org.jboss.osgi.resolver.XResource;
+import org.jboss.osgi.resolver.spi.AbstractResource;
 import org.osgi.framework.Version;
 import org.osgi.framework.namespace.IdentityNamespace;
 import org.osgi.framework.namespace.PackageNamespace;
@@ -32,6 +35,11 @@ public class Util
 {
     public static String getSymbolicName(Resource resource)
     {
+        Capability icap = getOSGiIdentityCapability(resource);
+        if (icap != null)
+        {
+            return icap.getAttributes().get(IdentityNamespace.IDENTITY_NAMESPACE).toString();
+        }
         List<Capability> caps = resource.getCapabilities(null);
         for (Capability cap : caps)
         {
@@ -45,6 +53,12 @@ public class Util
 
     public static Version getVersion(Resource resource)
     {
+        Capability icap = getOSGiIdentityCapability(resource);
+        if (icap != null)
+        {
+            return (Version)
+                icap.getAttributes().get(IdentityNamespace.CAPABILITY_VERSION_ATTRIBUTE);
+        }
         List<Capability> caps = resource.getCapabilities(null);
         for (Capability cap : caps)
         {
@@ -59,6 +73,14 @@ public class Util
 
     public static boolean isFragment(Resource resource)
     {
+        Capability icap = getOSGiIdentityCapability(resource);
+        if (icap != null)
+        {
+            return (resource instanceof AbstractResource)
+                ? ((AbstractResource) resource).isFragment()
+                : IdentityNamespace.TYPE_FRAGMENT.equals(
+                    icap.getAttributes().get(IdentityNamespace.CAPABILITY_TYPE_ATTRIBUTE));
+        }
         List<Capability> caps = resource.getCapabilities(null);
         for (Capability cap : caps)
         {
@@ -72,6 +94,22 @@ public class Util
         return false;
     }
 
+    // An immutable XResource knows its osgi.identity capability without a scan
+    private static Capability getOSGiIdentityCapability(Resource resource)
+    {
+        if (resource instanceof XResource)
+        {
+            XResource xres = (XResource) resource;
+            XIdentityCapability icap = xres.getIdentityCapability();
+            if ((icap != null) && !xres.isMutable()
+                && IdentityNamespace.IDENTITY_NAMESPACE.equals(icap.getNamespace()))
+            {
+                return icap;
+            }
+        }
+        return null;
+    }
+
     public static boolean isOptional(Requirement req)
     {
         String resolution = req.getDirectives().get(Namespace.REQUIREMENT_RESOLUTION_DIRECTIVE);
@@ -0,0 +1,36 @@
+/*
+ * #%L
+ * JBossOSGi Resolver Felix
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.resolver.felix;
+
+/**
+ * A Felix Resolver that searches the candidate permutations conflict driven.
+ *
+ * The decisions that caused a uses conflict are learned, and any permutation that makes them again is skipped
+ * without calculating its package spaces. Select it through {@link org.jboss.osgi.resolver.spi.AbstractResolver#RESOLVER_ENGINE}.
+ *
+ * @author agent@local
+ * @since 17-Oct-2026
+ */
+public final class ConflictDrivenResolver extends LoggingResolver {
+
+    public ConflictDrivenResolver() {
+        super(true);
+    }
+}
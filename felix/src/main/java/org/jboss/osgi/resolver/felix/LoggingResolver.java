@@ -24,6 +24,7 @@ import static org.jboss.osgi.resolver.ResolverLogger.LOGGER;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.felix.resolver.ResolverImpl;
 import org.osgi.resource.Resource;
@@ -37,10 +38,28 @@ import org.osgi.service.resolver.ResolveContext;
  * @author thomas.diesler@jboss.com
  * @since 31-May-2010
  */
-public final class LoggingResolver extends ResolverImpl {
+public class LoggingResolver extends ResolverImpl {
 
     public LoggingResolver() {
-        super(new LoggerDelegate());
+        this(false);
+    }
+
+    /**
+     * Create a resolver that calculates the package spaces of the next queued candidate permutations on the given
+     * executor, while the current one is checked. The resolution result does not depend on it.
+     *
+     * The executor is shared by all resolves and is not shut down by the resolver. The wirings of the resolve context
+     * are read from the executor threads, see {@link org.jboss.osgi.resolver.XResolveContext}.
+     *
+     * @param executor the executor that calculates the package spaces
+     * @param parallelism the number of queued permutations whose package spaces are calculated ahead
+     */
+    public LoggingResolver(ExecutorService executor, int parallelism) {
+        super(new LoggerDelegate(), false, executor, parallelism);
+    }
+
+    LoggingResolver(boolean conflictDriven) {
+        super(new LoggerDelegate(), conflictDriven, null, 0);
     }
 
     @Override
@@ -19,6 +19,7 @@
  */
 package org.jboss.test.osgi.resolver;
 
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
@@ -26,6 +27,7 @@ import java.util.Map;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
 
+import org.jboss.osgi.metadata.OSGiManifestBuilder;
 import org.jboss.osgi.metadata.OSGiMetaData;
 import org.jboss.osgi.metadata.OSGiMetaDataBuilder;
 import org.jboss.osgi.resolver.XBundleRevisionBuilderFactory;
@@ -40,6 +42,9 @@ import org.jboss.osgi.resolver.spi.AbstractResolver;
 import org.jboss.osgi.testing.OSGiTest;
 import org.jboss.shrinkwrap.api.Archive;
 import org.jboss.shrinkwrap.api.Node;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.Asset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
 import org.junit.Before;
 import org.osgi.framework.Constants;
 import org.osgi.framework.namespace.IdentityNamespace;
@@ -80,6 +85,26 @@ public abstract class AbstractResolverTest extends OSGiTest {
         return XBundleRevisionBuilderFactory.create().loadFrom(metadata).getResource();
     }
 
+    XResource createBundle(final String symbolicName, final String exports, final String imports) throws Exception {
+        final JavaArchive archive = ShrinkWrap.create(JavaArchive.class, symbolicName);
+        archive.setManifest(new Asset() {
+            @Override
+            public InputStream openStream() {
+                OSGiManifestBuilder builder = OSGiManifestBuilder.newInstance();
+                builder.addBundleManifestVersion(2);
+                builder.addBundleSymbolicName(symbolicName);
+                if (exports != null) {
+                    builder.addExportPackages(exports);
+                }
+                if (imports != null) {
+                    builder.addImportPackages(imports);
+                }
+                return builder.openStream();
+            }
+        });
+        return createResource(archive);
+    }
+
     XEnvironment installResources(XResource... resources) {
         environment.installResources(resources);
         return environment;
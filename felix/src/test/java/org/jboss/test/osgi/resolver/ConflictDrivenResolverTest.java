@@ -0,0 +1,137 @@
+/*
+ * #%L
+ * JBossOSGi Resolver Felix
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.test.osgi.resolver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.osgi.resolver.XPackageCapability;
+import org.jboss.osgi.resolver.XResource;
+import org.jboss.osgi.resolver.felix.ConflictDrivenResolver;
+import org.jboss.osgi.resolver.spi.AbstractResolver;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.resource.Resource;
+import org.osgi.resource.Wire;
+import org.osgi.service.resolver.ResolutionException;
+
+/**
+ * Test the conflict driven resolver engine.
+ *
+ * @author agent@local
+ * @since 17-Oct-2026
+ */
+public class ConflictDrivenResolverTest extends AbstractResolverTest {
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        resolver = new AbstractResolver(ConflictDrivenResolver.class.getSimpleName());
+    }
+
+    @Test
+    public void testUsesConflictBacktracking() throws Exception {
+        XResource resourceA1 = createBundle("a1", "p;version=1.0", null);
+        XResource resourceA2 = createBundle("a2", "p;version=2.0", null);
+        XResource resourceB = createBundle("b", "q;uses:=p", "p;version=\"[1.0,2.0)\"");
+
+        // The highest version of p is the first candidate, which conflicts with the uses constraint of q
+        XResource resourceC = createBundle("c", null, "p,q");
+
+        installResources(resourceA1, resourceA2, resourceB, resourceC);
+        List<XResource> mandatory = Arrays.asList(resourceC);
+        Map<Resource, List<Wire>> map = resolver.resolve(getResolveContext(mandatory, null));
+
+        List<Wire> wires = map.get(resourceC);
+        assertEquals(2, wires.size());
+        for (Wire wire : wires) {
+            XPackageCapability cap = (XPackageCapability) wire.getCapability();
+            if (cap.getPackageName().equals("p")) {
+                assertSame(resourceA1, wire.getProvider());
+            } else {
+                assertSame(resourceB, wire.getProvider());
+            }
+        }
+
+        // Verify that the default engine finds the same wiring
+        AbstractResolver defaultResolver = new AbstractResolver(null);
+        assertEquals(map, defaultResolver.resolve(getResolveContext(mandatory, null)));
+    }
+
+    @Test
+    public void testDuplicatePermutations() throws Exception {
+        XResource resourceA1 = createBundle("a1", "p;version=1.0", null);
+        XResource resourceA2 = createBundle("a2", "p;version=2.0", null);
+        XResource resourceA3 = createBundle("a3", "p;version=3.0", null);
+        XResource resourceB = createBundle("b", "q;uses:=p", "p;version=\"[1.0,2.0)\"");
+        XResource resourceD = createBundle("d", "r;uses:=p", "p;version=\"[1.0,3.0)\"");
+
+        // Both uses conflicts permutate p of c, which leads to the same permutation twice
+        XResource resourceC = createBundle("c", null, "p,q,r");
+
+        installResources(resourceA1, resourceA2, resourceA3, resourceB, resourceD, resourceC);
+        List<XResource> mandatory = Arrays.asList(resourceC);
+        ConflictDrivenResolver engine = new ConflictDrivenResolver();
+        Map<Resource, List<Wire>> map = engine.resolve(getResolveContext(mandatory, null));
+        assertEquals(1, engine.getDuplicatePermutations());
+        for (Wire wire : map.get(resourceC)) {
+            XPackageCapability cap = (XPackageCapability) wire.getCapability();
+            if (cap.getPackageName().equals("p")) {
+                assertSame(resourceA1, wire.getProvider());
+            }
+        }
+    }
+
+    @Test
+    public void testUnresolvableUsesConflict() throws Exception {
+        XResource resourceA1 = createBundle("a1", "p;version=1.0", null);
+        XResource resourceA2 = createBundle("a2", "p;version=2.0", null);
+        XResource resourceB = createBundle("b", "q;uses:=p", "p;version=\"[1.0,2.0)\"");
+        XResource resourceD = createBundle("d", "r;uses:=p", "p;version=\"[2.0,3.0)\"");
+
+        // Every candidate for p conflicts with either q or r
+        XResource resourceC = createBundle("c", null, "p,q,r");
+
+        installResources(resourceA1, resourceA2, resourceB, resourceD, resourceC);
+        List<XResource> mandatory = Arrays.asList(resourceC);
+        try {
+            resolver.resolve(getResolveContext(mandatory, null));
+            fail("ResolutionException expected");
+        } catch (ResolutionException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testUnknownEngine() throws Exception {
+        try {
+            new AbstractResolver("UnknownResolver");
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+    }
+}
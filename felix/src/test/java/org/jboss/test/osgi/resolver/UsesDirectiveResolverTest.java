@@ -27,6 +27,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import junit.framework.Assert;
 
@@ -34,6 +36,7 @@ import org.jboss.osgi.metadata.OSGiManifestBuilder;
 import org.jboss.osgi.resolver.XPackageCapability;
 import org.jboss.osgi.resolver.XPackageRequirement;
 import org.jboss.osgi.resolver.XResource;
+import org.jboss.osgi.resolver.felix.LoggingResolver;
 import org.jboss.shrinkwrap.api.ShrinkWrap;
 import org.jboss.shrinkwrap.api.asset.Asset;
 import org.jboss.shrinkwrap.api.spec.JavaArchive;
@@ -220,6 +223,94 @@ public class UsesDirectiveResolverTest extends AbstractResolverTest {
         Assert.assertEquals(0, wiringD.getResourceCapabilities(PACKAGE_NAMESPACE).size());
     }
 
+    @Test
+    public void testUsesConstraintInDependencyCycle() throws Exception {
+        XResource resourceW1 = createBundle("w1", "w;version=2.0", null);
+        XResource resourceW2 = createBundle("w2", "w;version=1.0", null);
+        XResource resourceZ = createBundle("z", "z;uses:=w", "w");
+        XResource resourceX = createBundle("x", "x;uses:=z", "a,z");
+
+        // A and X import from each other. A is exposed to w through x and z,
+        // so z must import w from the same resource as A does
+        XResource resourceA = createBundle("a", "a", "x,w;version=\"[1.0,2.0)\"");
+        XResource resourceR = createBundle("r", null, "x");
+
+        installResources(resourceW1, resourceW2, resourceZ, resourceX, resourceA, resourceR);
+        List<XResource> mandatory = Arrays.asList(resourceR);
+        Map<Resource, List<Wire>> map = resolver.resolve(getResolveContext(mandatory, null));
+
+        List<Wire> wires = map.get(resourceZ);
+        assertEquals(1, wires.size());
+        Assert.assertSame(resourceW2, wires.get(0).getProvider());
+        for (Wire wire : map.get(resourceA)) {
+            if (getPackageName(wire.getCapability()).equals("w")) {
+                Assert.assertSame(resourceW2, wire.getProvider());
+            }
+        }
+    }
+
+    @Test
+    public void testUsesConflictWithParallelism() throws Exception {
+        XResource resourceA1 = createBundle("a1", "p;version=1.0", null);
+        XResource resourceA2 = createBundle("a2", "p;version=2.0", null);
+        XResource resourceA3 = createBundle("a3", "p;version=3.0", null);
+        XResource resourceB = createBundle("b", "q;uses:=p", "p;version=\"[1.0,2.0)\"");
+        XResource resourceD = createBundle("d", "r;uses:=p", "p;version=\"[1.0,3.0)\"");
+
+        // Only a1 is consistent with both uses constraints, which takes several permutations
+        XResource resourceC = createBundle("c", null, "p,q,r");
+
+        installResources(resourceA1, resourceA2, resourceA3, resourceB, resourceD, resourceC);
+        List<XResource> mandatory = Arrays.asList(resourceC);
+        Map<Resource, List<Wire>> map = resolver.resolve(getResolveContext(mandatory, null));
+        for (Wire wire : map.get(resourceC)) {
+            if (getPackageName(wire.getCapability()).equals("p")) {
+                Assert.assertSame(resourceA1, wire.getProvider());
+            }
+        }
+
+        // Verify that calculating the queued permutations concurrently finds the same wiring
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            LoggingResolver parallelResolver = new LoggingResolver(executor, 2);
+            assertEquals(map, parallelResolver.resolve(getResolveContext(mandatory, null)));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testParallelismEquivalence() throws Exception {
+        // Four versions of p and s, each consumer constrains both through its uses directive
+        List<XResource> resources = new ArrayList<XResource>();
+        for (int i = 1; i <= 4; i++) {
+            resources.add(createBundle("p" + i, "p;version=" + i + ".0", null));
+            resources.add(createBundle("s" + i, "s;version=" + i + ".0;uses:=p", "p"));
+        }
+        resources.add(createBundle("b", "q;uses:=\"p,s\"", "p;version=\"[1.0,3.0)\",s;version=\"[2.0,5.0)\""));
+        resources.add(createBundle("d", "r;uses:=\"p,s\"", "p;version=\"[2.0,5.0)\",s;version=\"[1.0,4.0)\""));
+        XResource resourceC = createBundle("c", null, "p,q,r,s");
+        resources.add(resourceC);
+        installResources(resources.toArray(new XResource[resources.size()]));
+
+        List<XResource> mandatory = Arrays.asList(resourceC);
+        Map<Resource, List<Wire>> expected = new LoggingResolver().resolve(getResolveContext(mandatory, null));
+        Assert.assertNotNull(expected.get(resourceC));
+
+        // The package spaces of the queued permutations are calculated on a shared pool, the wiring must not change
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (int parallelism : new int[] { 1, 2, 4 }) {
+                LoggingResolver parallelResolver = new LoggingResolver(executor, parallelism);
+                for (int i = 0; i < 10; i++) {
+                    assertEquals(expected, parallelResolver.resolve(getResolveContext(mandatory, null)));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     private String getPackageName(Capability cap) {
         return ((XPackageCapability)cap).getPackageName();
     }